@@ -0,0 +1,4 @@
+package benchmark.jmh_generated;
+public class HexBenchmark_jmhType extends HexBenchmark_jmhType_B3 {
+}
+
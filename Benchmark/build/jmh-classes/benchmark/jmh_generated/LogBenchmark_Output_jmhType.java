@@ -0,0 +1,4 @@
+package benchmark.jmh_generated;
+public class LogBenchmark_Output_jmhType extends LogBenchmark_Output_jmhType_B3 {
+}
+
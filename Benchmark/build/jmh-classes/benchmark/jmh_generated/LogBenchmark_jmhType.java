@@ -0,0 +1,4 @@
+package benchmark.jmh_generated;
+public class LogBenchmark_jmhType extends LogBenchmark_jmhType_B3 {
+}
+
@@ -0,0 +1,4 @@
+package benchmark.jmh_generated;
+public class SimulatedCycleBenchmark_jmhType extends SimulatedCycleBenchmark_jmhType_B3 {
+}
+
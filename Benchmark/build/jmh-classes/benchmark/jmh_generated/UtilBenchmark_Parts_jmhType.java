@@ -0,0 +1,4 @@
+package benchmark.jmh_generated;
+public class UtilBenchmark_Parts_jmhType extends UtilBenchmark_Parts_jmhType_B3 {
+}
+
@@ -0,0 +1,4 @@
+package benchmark.jmh_generated;
+public class UtilBenchmark_jmhType extends UtilBenchmark_jmhType_B3 {
+}
+
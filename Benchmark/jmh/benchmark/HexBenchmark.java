@@ -0,0 +1,98 @@
+package benchmark;
+
+import cardTools.Util;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares hex conversion of Util with the String.format and substring based
+ * implementations it replaced. Sizes cover a short APDU, a full short APDU
+ * payload and the default LogApplet log.
+ *
+ * Run with: ant jmh -Djmh.args=HexBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HexBenchmark {
+
+    @Param({"16", "255", "10000"})
+    int size;
+
+    byte[] bytes;
+    String hex;
+    char[] hexChars;
+    byte[] decoded;
+    StringBuilder sb;
+
+    @Setup
+    public void setup() {
+        bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        hex = Util.toHex(bytes);
+        hexChars = new char[size * 2];
+        decoded = new byte[size];
+        sb = new StringBuilder(size * 2);
+    }
+
+    @Benchmark
+    public String toHexFormat() {
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < bytes.length; i++) {
+            result.append(String.format("%02X", bytes[i]));
+        }
+        return result.toString();
+    }
+
+    @Benchmark
+    public String toHex() {
+        return Util.toHex(bytes);
+    }
+
+    @Benchmark
+    public int toHexIntoArray() {
+        return Util.toHex(bytes, 0, bytes.length, hexChars, 0);
+    }
+
+    @Benchmark
+    public int appendHex() {
+        sb.setLength(0);
+        return Util.appendHex(sb, bytes, 0, bytes.length).length();
+    }
+
+    @Benchmark
+    public byte[] fromHexSubstring() {
+        String sanitized = hex.replace(" ", "");
+        byte[] b = new byte[sanitized.length() / 2];
+        for (int i = 0; i < b.length; i++) {
+            int index = i * 2;
+            b[i] = (byte) Integer.parseInt(sanitized.substring(index, index + 2), 16);
+        }
+        return b;
+    }
+
+    @Benchmark
+    public byte[] fromHex() {
+        return Util.hexStringToByteArray(hex);
+    }
+
+    @Benchmark
+    public int fromHexIntoArray() {
+        return Util.hexStringToByteArray(hex, decoded, 0);
+    }
+}
@@ -0,0 +1,150 @@
+package benchmark;
+
+import controlservice.LogCursor;
+import controlservice.LogFormat;
+import controlservice.LogPrinter;
+import controlservice.LogRecord;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Log handling of ControlService without cards: parsing and printing as in
+ * printLog, and walking the log with response records written as in
+ * communicateTarget. Log holds a session of READ RECORD commands with 16 byte
+ * responses.
+ *
+ * Run with: ant jmh -Djmh.args=LogBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LogBenchmark {
+
+    final static int RESPONSE_DATA_LEN = 16;
+
+    @Param({"10", "100"})
+    int iterations;
+
+    @Param({"LEGACY", "COMPACT"})
+    String format;
+
+    LogFormat logFormat;
+    byte[] log;
+    byte[] response;
+    byte[] command;
+    List<LogRecord> records;
+    final LogCursor cursor = new LogCursor();
+
+    /**
+     * Printer of the given style writing nowhere, only formatting is measured.
+     */
+    @State(Scope.Thread)
+    public static class Output {
+        @Param({"TEXT", "CSV", "JSON"})
+        String style;
+
+        LogPrinter printer;
+        final Writer writer = new Writer() {
+            @Override
+            public void write(char[] cbuf, int off, int len) {
+            }
+
+            @Override
+            public void write(String str, int off, int len) {
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+
+        @Setup
+        public void setup() {
+            printer = new LogPrinter(LogPrinter.Style.valueOf(style));
+        }
+    }
+
+    @Setup
+    public void setup() {
+        logFormat = format.equals("COMPACT") ? LogFormat.COMPACT : LogFormat.LEGACY;
+        log = new byte[(iterations + 1) * (RESPONSE_DATA_LEN + 32)];
+        response = new byte[RESPONSE_DATA_LEN];
+        command = new byte[log.length];
+        byte[] header = new byte[LogFormat.APDU_HEAD_LEN];
+        int offset = 0;
+        for (int iter = 0; iter < iterations; iter++) {
+            offset = logFormat.putCommand(log, offset, iter, ReplayLatencyBenchmark.buildCommand(iter).getBytes(), header);
+            offset = logFormat.putResponse(log, offset, iter, response, 0x9000);
+        }
+        records = LogRecord.parse(log, logFormat);
+    }
+
+    @Benchmark
+    public List<LogRecord> parse() {
+        return LogRecord.parse(log, logFormat);
+    }
+
+    @Benchmark
+    public Writer print(Output output) throws IOException {
+        output.printer.print(records, output.writer);
+        return output.writer;
+    }
+
+    @Benchmark
+    public int parseAndPrint(Output output) throws IOException {
+        List<LogRecord> parsed = LogRecord.parse(log, logFormat);
+        output.printer.print(parsed, output.writer);
+        return parsed.size();
+    }
+
+    /**
+     * Loop of communicateTarget with the target card answering instantly.
+     */
+    @Benchmark
+    public int communicateWalk() {
+        int iter = 0;
+        int offset = 0;
+        cursor.reset(log, logFormat);
+        while (cursor.next()) {
+            if (!cursor.isCommand()) {
+                continue;
+            }
+            int commandLen = cursor.copyTo(command, 0);
+            response[0] = command[commandLen - 1];
+            offset = logFormat.putResponse(log, cursor.getNextOffset(), iter, response, 0x9000);
+            iter++;
+        }
+        return offset;
+    }
+
+    @Benchmark
+    public int cursorWalk() {
+        int records = 0;
+        cursor.reset(log, logFormat);
+        while (cursor.next()) {
+            records += cursor.getLength();
+        }
+        return records;
+    }
+}
@@ -0,0 +1,135 @@
+package benchmark;
+
+import cardTools.CardManager;
+import controlservice.ControlService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.smartcardio.Card;
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Whole ControlService cycle with LogApplet as replay card running in jCardSim
+ * over SimulatedCardChannelLocal: readout of the log, communication, printing
+ * and write back. jCardSim holds one applet per JVM, so target card is a stub
+ * channel whose responses change in every cycle, and every response record
+ * is written back.
+ *
+ * Run with: ant jmh -Djmh.args=SimulatedCycleBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+// jCardSim 3.0.5 classes miss stack map frames required by newer JVMs
+@Fork(value = 1, jvmArgsAppend = "-noverify")
+public class SimulatedCycleBenchmark {
+
+    @Param({"10", "50"})
+    int iterations;
+
+    CardManager replay;
+    CardManager target;
+    ControlService service;
+    PrintStream out;
+
+    /**
+     * Target card answering SELECT without data and other commands with
+     * response data of the replay log length, filled with a cycle counter.
+     */
+    static class TargetStub extends CardChannel {
+        final byte[] response = new byte[ReplayLatencyBenchmark.RESPONSE_DATA_LEN + 2];
+        byte counter = 0;
+
+        @Override
+        public Card getCard() {
+            return null;
+        }
+
+        @Override
+        public int getChannelNumber() {
+            return 0;
+        }
+
+        @Override
+        public ResponseAPDU transmit(CommandAPDU command) {
+            return new ResponseAPDU(Arrays.copyOf(response, respond(command.getINS())));
+        }
+
+        @Override
+        public int transmit(ByteBuffer command, ByteBuffer response) {
+            int len = respond(command.get(command.position() + 1) & 0xff);
+            command.position(command.limit());
+            response.put(this.response, 0, len);
+            return len;
+        }
+
+        /**
+         * @return length of the response prepared in response array
+         */
+        int respond(int ins) {
+            if (ins == 0xA4) {
+                counter++;
+                response[0] = (byte) 0x90;
+                response[1] = 0x00;
+                return 2;
+            }
+            Arrays.fill(response, 0, response.length - 2, counter);
+            response[response.length - 2] = (byte) 0x90;
+            response[response.length - 1] = 0x00;
+            return response.length;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        out = System.out;
+        // Output of cycles is not part of the measurement
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+        replay = ReplayLatencyBenchmark.connectSimulator();
+        ReplayLatencyBenchmark.preloadLog(replay, iterations);
+        target = new CardManager(false, ReplayLatencyBenchmark.APPLET_AID).setChannel(new TargetStub());
+        service = new ControlService();
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.setOut(out);
+    }
+
+    @Benchmark
+    public ControlService cycle() throws Exception {
+        service.runCycle(replay, target);
+        return service;
+    }
+}
@@ -0,0 +1,92 @@
+package benchmark;
+
+import cardTools.Util;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Short conversions and array joining of Util, as used when building
+ * Command APDUs and parsing responses. Sizes cover an APDU header, a short
+ * APDU payload and an Extended APDU payload.
+ *
+ * Run with: ant jmh -Djmh.args=UtilBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UtilBenchmark {
+
+    final byte[] shortBytes = {0x12, 0x34, 0x56};
+    int offset;
+
+    /**
+     * Arrays of the given size to join.
+     */
+    @State(Scope.Thread)
+    public static class Parts {
+        @Param({"4", "255", "4096"})
+        int size;
+
+        byte[] a;
+        byte[] b;
+        byte[] c;
+
+        @Setup
+        public void setup() {
+            Random random = new Random(size);
+            a = new byte[size];
+            b = new byte[size];
+            c = new byte[size];
+            random.nextBytes(a);
+            random.nextBytes(b);
+            random.nextBytes(c);
+        }
+    }
+
+    @Benchmark
+    public short getShort() {
+        offset = (offset + 1) & 1;
+        return Util.getShort(shortBytes, offset);
+    }
+
+    @Benchmark
+    public short readShort() {
+        offset = (offset + 1) & 1;
+        return Util.readShort(shortBytes, offset);
+    }
+
+    @Benchmark
+    public byte[] shortToByteArray() {
+        return Util.shortToByteArray(offset++);
+    }
+
+    @Benchmark
+    public byte[] concat2(Parts parts) {
+        return Util.concat(parts.a, parts.b);
+    }
+
+    @Benchmark
+    public byte[] concat3(Parts parts) {
+        return Util.concat(parts.a, parts.b, parts.c);
+    }
+
+    @Benchmark
+    public byte[] joinArray3(Parts parts) {
+        return Util.joinArray(parts.a, parts.b, parts.c);
+    }
+}
@@ -0,0 +1,175 @@
+package benchmark;
+
+import cardTools.CardManager;
+import cardTools.RunConfig;
+import cardTools.Util;
+import logapplet.LogApplet;
+
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Measures round trip times of LogApplet instructions depending on how much
+ * of the log is filled, to tell EEPROM write and log scan costs of a card
+ * model. For every depth the log is filled with that many iterations and
+ * these are timed:
+ * - INS_SEND_LOG of the last 255 bytes of records,
+ * - INS_MODIFY_LOG rewriting the last 255 bytes of records with the same bytes,
+ * - INS_SEND_LOG_USED, which walks all records,
+ * - replay of the last logged iteration in a session replayed from SELECT,
+ * - logging of a new Command APDU behind the last iteration, which is erased afterwards.
+ *
+ * LogApplet runs in jCardSim, or on the card in the given reader (option -r).
+ * The log on the card is erased.
+ *
+ * Usage: AppletCostBenchmark [-r reader] [-n samples] [depth ...]
+ */
+public class AppletCostBenchmark {
+
+    final static byte INS_SEND_LOG_LEN = (byte) 0x50;
+    final static byte INS_SEND_LOG = (byte) 0x51;
+    final static byte INS_SEND_LOG_USED = (byte) 0x53;
+    final static byte INS_CLEAR_LOG = (byte) 0x54;
+    final static int SW_EXCEPTION = 0xff01;
+
+    final static int[] DEFAULT_DEPTHS = {10, 50, 100, 200};
+    final static int DEFAULT_SAMPLES = 50;
+    final static int CHUNK_LEN = 255;
+    // Largest log LogApplet can hold, used in jCardSim
+    final static int SIMULATOR_LOG_CAPACITY = 0x7fff;
+
+    public static void main(String[] args) throws Exception {
+        int reader = -1;
+        int samples = DEFAULT_SAMPLES;
+        List<Integer> depths = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-r") && i + 1 < args.length) {
+                reader = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-n") && i + 1 < args.length) {
+                samples = Integer.parseInt(args[++i]);
+            } else {
+                depths.add(Integer.parseInt(args[i]));
+            }
+        }
+        if (depths.isEmpty()) {
+            Arrays.stream(DEFAULT_DEPTHS).forEach(depths::add);
+        }
+
+        CardManager cardMngr = reader < 0 ? connectSimulator() : connectPhysical(reader);
+        int logSize = Util.getShort(transmitService(cardMngr, INS_SEND_LOG_LEN, 0, null).getData(), 0);
+        System.out.println("LogApplet instruction cost on " + (reader < 0 ? "jCardSim"
+                : "card " + Util.toHex(cardMngr.getChannel().getCard().getATR().getBytes()))
+                + " (log " + logSize + " bytes, " + samples + " samples, median [us])");
+        if (reader < 0) {
+            // Simulator runs slower until the applet code is compiled
+            measureDepth(cardMngr, depths.get(0), logSize, samples);
+        }
+        System.out.println("depth   used   SEND_LOG  MODIFY_LOG  SEND_USED  replay N  new APDU");
+        for (int depth : depths) {
+            System.out.println(measureDepth(cardMngr, depth, logSize, samples));
+        }
+        transmitService(cardMngr, INS_CLEAR_LOG, 0, null);
+    }
+
+    /**
+     * Method filling the log to the depth and measuring all instructions.
+     *
+     * @param cardMngr card with LogApplet
+     * @param depth number of logged iterations after SELECT
+     * @param logSize capacity of the log
+     * @param samples number of measurements of every instruction
+     * @return row of the table with median times
+     */
+    static String measureDepth(CardManager cardMngr, int depth, int logSize, int samples) throws Exception {
+        transmitService(cardMngr, INS_CLEAR_LOG, 0, null);
+        try {
+            ReplayLatencyBenchmark.preloadLog(cardMngr, depth);
+        } catch (Exception e) {
+            return String.format("%5d   log of %d bytes is too small", depth, logSize);
+        }
+        int used = Util.getShort(transmitService(cardMngr, INS_SEND_LOG_USED, 0, null).getData(), 0);
+        int tailOffset = Math.max(0, used - CHUNK_LEN);
+        byte[] tail = transmitService(cardMngr, INS_SEND_LOG, tailOffset, null).getData();
+        tail = Arrays.copyOf(tail, used - tailOffset);
+
+        long[] sendLog = new long[samples];
+        long[] modifyLog = new long[samples];
+        long[] sendUsed = new long[samples];
+        long[] replay = new long[samples];
+        long[] newApdu = new long[samples];
+        byte[] zeros = new byte[CHUNK_LEN];
+        for (int s = 0; s < samples; s++) {
+            transmitService(cardMngr, INS_SEND_LOG, tailOffset, null);
+            sendLog[s] = cardMngr.getLastTransmitTimeNanos();
+            transmitService(cardMngr, ReplayLatencyBenchmark.INS_MODIFY_LOG, tailOffset, tail);
+            modifyLog[s] = cardMngr.getLastTransmitTimeNanos();
+            transmitService(cardMngr, INS_SEND_LOG_USED, 0, null);
+            sendUsed[s] = cardMngr.getLastTransmitTimeNanos();
+
+            // SELECT restarts the iteration count of LogApplet and is replayed as iteration 0
+            for (int iter = 0; iter <= depth; iter++) {
+                ReplayLatencyBenchmark.checkResponse(cardMngr.transmit(ReplayLatencyBenchmark.buildCommand(iter)),
+                        iter, iter == 0 ? 0 : ReplayLatencyBenchmark.RESPONSE_DATA_LEN);
+            }
+            replay[s] = cardMngr.getLastTransmitTimeNanos();
+            ResponseAPDU response = cardMngr.transmit(ReplayLatencyBenchmark.buildCommand(depth + 1));
+            newApdu[s] = cardMngr.getLastTransmitTimeNanos();
+            if (response.getSW() != SW_EXCEPTION) {
+                throw new Exception("New APDU was not logged: " + Util.toHex(response.getBytes()));
+            }
+            // Logged record is erased, so the next sample logs it again
+            transmitService(cardMngr, ReplayLatencyBenchmark.INS_MODIFY_LOG, used,
+                    Arrays.copyOf(zeros, Math.min(CHUNK_LEN, logSize - used)));
+        }
+        return String.format("%5d  %5d  %9.1f  %10.1f  %9.1f  %8.1f  %8.1f", depth, used,
+                median(sendLog), median(modifyLog), median(sendUsed), median(replay), median(newApdu));
+    }
+
+    static CardManager connectSimulator() throws Exception {
+        CardManager cardMngr = new CardManager(false, ReplayLatencyBenchmark.APPLET_AID);
+        RunConfig runCfg = RunConfig.getDefaultConfig();
+        runCfg.setAppletToSimulate(LogApplet.class);
+        runCfg.setTestCardType(RunConfig.CARD_TYPE.JCARDSIMLOCAL);
+        runCfg.setbLogSimulatorApdus(false);
+        byte[] aid = ReplayLatencyBenchmark.APPLET_AID;
+        // | AID length | AID | privileges length | proprietary length | log capacity |
+        runCfg.setInstallData(Util.concat(new byte[] {(byte) aid.length}, aid,
+                new byte[] {0, 2, (byte) (SIMULATOR_LOG_CAPACITY >> 8), (byte) SIMULATOR_LOG_CAPACITY}));
+        if (!cardMngr.Connect(runCfg)) {
+            throw new Exception("Failed to install LogApplet in jCardSim.");
+        }
+        return cardMngr;
+    }
+
+    static CardManager connectPhysical(int reader) throws Exception {
+        CardManager cardMngr = new CardManager(false, ReplayLatencyBenchmark.APPLET_AID);
+        RunConfig runCfg = RunConfig.getDefaultConfig();
+        runCfg.setTestCardType(RunConfig.CARD_TYPE.PHYSICAL);
+        runCfg.setTargetReaderIndex(reader);
+        if (!cardMngr.Connect(runCfg)) {
+            throw new Exception("No card with LogApplet in reader " + reader + ".");
+        }
+        return cardMngr;
+    }
+
+    static ResponseAPDU transmitService(CardManager cardMngr, int ins, int offset, byte[] data) throws Exception {
+        CommandAPDU cmd = data == null
+                ? new CommandAPDU(ReplayLatencyBenchmark.CLA_LOGAPPLET, ins, offset >> 8, offset & 0xff, 256)
+                : new CommandAPDU(ReplayLatencyBenchmark.CLA_LOGAPPLET, ins, offset >> 8, offset & 0xff, data);
+        ResponseAPDU response = cardMngr.transmit(cmd);
+        if (response.getSW() != 0x9000) {
+            throw new Exception("Instruction " + Integer.toHexString(ins & 0xff) + " at offset " + offset
+                    + " failed with SW " + Integer.toHexString(response.getSW()));
+        }
+        return response;
+    }
+
+    static double median(long[] times) {
+        long[] sorted = times.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2] / 1000.0;
+    }
+}
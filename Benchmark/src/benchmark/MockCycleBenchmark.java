@@ -0,0 +1,137 @@
+package benchmark;
+
+import cardTools.CardManager;
+import cardTools.OperationTimes;
+import cardTools.RunConfig;
+import cardTools.SimulatedCardChannelRemote;
+import cardTools.Util;
+import controlservice.ControlService;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * Measures the whole ControlService cycle (readout, communication with target
+ * card, write back) against LogApplet and MockTargetApplet in jCardSim. Cycles
+ * run once with zero card latency, which is the host overhead, and once with
+ * delays of the target card profile, the difference is the card time.
+ *
+ * jCardSim runs one applet per JVM, so the target card is hosted by
+ * SimulatorServer started in another process.
+ *
+ * Usage: MockCycleBenchmark script profile [iterations]
+ */
+public class MockCycleBenchmark {
+
+    final static int DEFAULT_ITERATIONS = 50;
+    final static int WARMUP_CYCLES = 50;
+    final static int MEASURED_CYCLES = 200;
+    final static int PROFILED_CYCLES = 5;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("Usage: MockCycleBenchmark script profile [iterations]");
+            return;
+        }
+        // Malformed script is reported here rather than by the server
+        MockTargetApplet.loadScript(args[0]);
+        OperationTimes profile = OperationTimes.load(args[1]);
+        int depth = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_ITERATIONS;
+
+        Process server = startTargetServer(args[0]);
+        try {
+            run(server, profile, depth);
+        } finally {
+            server.destroy();
+        }
+    }
+
+    static void run(Process server, OperationTimes profile, int depth) throws Exception {
+        CardManager replay = ReplayLatencyBenchmark.connectSimulator();
+        ReplayLatencyBenchmark.preloadLog(replay, depth);
+        CardManager target = connectTarget(readPort(server));
+        SimulatedCardChannelRemote targetChannel = (SimulatedCardChannelRemote) target.getChannel();
+        ControlService service = new ControlService();
+
+        PrintStream out = System.out;
+        // Output of cycles is not part of the measurement
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+        double zeroLatency;
+        double profiled;
+        try {
+            runCycles(service, replay, target, WARMUP_CYCLES);
+            zeroLatency = runCycles(service, replay, target, MEASURED_CYCLES);
+            targetChannel.setOperationTimes(profile);
+            profiled = runCycles(service, replay, target, PROFILED_CYCLES);
+        } finally {
+            System.setOut(out);
+        }
+
+        System.out.println("ControlService cycle with mock target (" + (depth + 1) + " APDUs per cycle)");
+        System.out.printf("zero latency     %10.3f ms per cycle\n", zeroLatency);
+        System.out.printf("profile latency  %10.3f ms per cycle\n", profiled);
+        System.out.printf("card time        %10.3f ms per cycle\n", profiled - zeroLatency);
+    }
+
+    /**
+     * Method starting SimulatorServer with MockTargetApplet under the AID
+     * selected by the preloaded log.
+     *
+     * @param script rule table of the applet
+     * @return server process
+     */
+    static Process startTargetServer(String script) throws Exception {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        return new ProcessBuilder(java, "-noverify", "-D" + MockTargetApplet.SCRIPT_PROPERTY + "=" + script,
+                "-cp", System.getProperty("java.class.path"), "cardTools.SimulatorServer",
+                "0", MockTargetApplet.class.getName(), Util.toHex(ReplayLatencyBenchmark.APPLET_AID))
+                .redirectErrorStream(true).start();
+    }
+
+    /**
+     * @return port announced by the server
+     */
+    static int readPort(Process server) throws Exception {
+        BufferedReader in = new BufferedReader(new InputStreamReader(server.getInputStream()));
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.contains("listening on port ")) {
+                return Integer.parseInt(line.substring(line.lastIndexOf(' ') + 1));
+            }
+        }
+        throw new Exception("Simulator server of target card failed to start.");
+    }
+
+    static CardManager connectTarget(int port) throws Exception {
+        CardManager cardMngr = new CardManager(false, ReplayLatencyBenchmark.APPLET_AID);
+        RunConfig runCfg = RunConfig.getDefaultConfig();
+        runCfg.setTestCardType(RunConfig.CARD_TYPE.JCARDSIMREMOTE);
+        runCfg.setRemotePort(port);
+        if (!cardMngr.Connect(runCfg)) {
+            throw new Exception("Failed to connect to target card simulator.");
+        }
+        return cardMngr;
+    }
+
+    /**
+     * @return mean time of one cycle in ms
+     */
+    static double runCycles(ControlService service, CardManager replay, CardManager target, int cycles) throws Exception {
+        long start = System.nanoTime();
+        for (int i = 0; i < cycles; i++) {
+            service.runCycle(replay, target);
+        }
+        return (System.nanoTime() - start) / 1e6 / cycles;
+    }
+}
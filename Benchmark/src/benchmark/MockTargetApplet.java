@@ -0,0 +1,174 @@
+package benchmark;
+
+import cardTools.Util;
+import javacard.framework.APDU;
+import javacard.framework.Applet;
+import javacard.framework.ISO7816;
+import javacard.framework.ISOException;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Target card for jCardSim answering Command APDUs by a rule table. Runs only
+ * in the simulator, rules are plain Java objects shared by all instances.
+ *
+ * Script line is | command pattern | response |, both in hex. Pattern is
+ * matched against CLA, INS, P1, P2 and command data (Lc and Le are left out),
+ * ".." matches any byte and trailing "*" any remaining bytes. Response is
+ * response data followed by SW. The first matching rule wins, commands
+ * without rule get SW_INS_NOT_SUPPORTED. Lines starting with # are comments.
+ *
+ * Rules are set by setScript() before install, or loaded at install from the
+ * file in system property mock.script.
+ */
+public class MockTargetApplet extends Applet {
+
+    public final static String SCRIPT_PROPERTY = "mock.script";
+
+    public static class Rule {
+        final byte[] pattern;
+        final boolean[] wildcard;
+        final boolean prefix;
+        final byte[] response;
+
+        Rule(byte[] pattern, boolean[] wildcard, boolean prefix, byte[] response) {
+            this.pattern = pattern;
+            this.wildcard = wildcard;
+            this.prefix = prefix;
+            this.response = response;
+        }
+
+        boolean matches(byte[] command, int len) {
+            if (prefix ? len < pattern.length : len != pattern.length) {
+                return false;
+            }
+            for (int i = 0; i < pattern.length; i++) {
+                if (!wildcard[i] && pattern[i] != command[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static volatile List<Rule> script = null;
+
+    private final byte[] command = new byte[4 + 255];
+
+    public static void install(byte[] bArray, short bOffset, byte bLength) throws ISOException {
+        if (script == null) {
+            String fileName = System.getProperty(SCRIPT_PROPERTY);
+            if (fileName == null) {
+                ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+            }
+            try {
+                setScript(loadScript(fileName));
+            } catch (IOException e) {
+                ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+            }
+        }
+        new MockTargetApplet().register();
+    }
+
+    public static void setScript(List<Rule> rules) {
+        script = rules;
+    }
+
+    public static List<Rule> loadScript(String fileName) throws IOException {
+        try (Reader in = new InputStreamReader(new FileInputStream(fileName), StandardCharsets.UTF_8)) {
+            return loadScript(in, fileName);
+        }
+    }
+
+    /**
+     * Method parsing rule table.
+     *
+     * @param in script
+     * @param name name of the script used in error messages
+     * @return rules in the order of script
+     * @throws IOException if script cannot be read or a line is malformed
+     */
+    public static List<Rule> loadScript(Reader in, String name) throws IOException {
+        List<Rule> rules = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(in);
+        String line;
+        int lineNumber = 0;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split("\\s+");
+            try {
+                if (fields.length != 2) {
+                    throw new IllegalArgumentException("expected command pattern and response");
+                }
+                rules.add(parseRule(fields[0], fields[1]));
+            } catch (IllegalArgumentException e) {
+                throw new IOException(name + ":" + lineNumber + ": " + e.getMessage());
+            }
+        }
+        return rules;
+    }
+
+    static Rule parseRule(String pattern, String response) {
+        boolean prefix = pattern.endsWith("*");
+        if (prefix) {
+            pattern = pattern.substring(0, pattern.length() - 1);
+        }
+        if (pattern.length() % 2 != 0) {
+            throw new IllegalArgumentException("odd number of digits in " + pattern);
+        }
+        byte[] bytes = new byte[pattern.length() / 2];
+        boolean[] wildcard = new boolean[bytes.length];
+        for (int i = 0; i < bytes.length; i++) {
+            String b = pattern.substring(2 * i, 2 * i + 2);
+            if (b.equals("..")) {
+                wildcard[i] = true;
+            } else {
+                bytes[i] = (byte) Integer.parseInt(b, 16);
+            }
+        }
+        byte[] rsps = Util.hexStringToByteArray(response);
+        if (rsps.length < 2) {
+            throw new IllegalArgumentException("response without SW");
+        }
+        return new Rule(bytes, wildcard, prefix, rsps);
+    }
+
+    @Override
+    public void process(APDU apdu) throws ISOException {
+        if (selectingApplet()) {
+            return;
+        }
+        byte[] buffer = apdu.getBuffer();
+        short dataLen = apdu.setIncomingAndReceive();
+        javacard.framework.Util.arrayCopyNonAtomic(buffer, ISO7816.OFFSET_CLA, command, (short) 0, (short) 4);
+        javacard.framework.Util.arrayCopyNonAtomic(buffer, ISO7816.OFFSET_CDATA, command, (short) 4, dataLen);
+
+        for (Rule rule : script) {
+            if (rule.matches(command, 4 + dataLen)) {
+                byte[] rsps = rule.response;
+                short swOffset = (short) (rsps.length - 2);
+                short sw = javacard.framework.Util.getShort(rsps, swOffset);
+                if (swOffset > 0) {
+                    javacard.framework.Util.arrayCopyNonAtomic(rsps, (short) 0, buffer, (short) 0, swOffset);
+                    apdu.setOutgoingAndSend((short) 0, swOffset);
+                }
+                if (sw != ISO7816.SW_NO_ERROR) {
+                    ISOException.throwIt(sw);
+                }
+                return;
+            }
+        }
+        ISOException.throwIt(ISO7816.SW_INS_NOT_SUPPORTED);
+    }
+}
@@ -0,0 +1,80 @@
+package benchmark;
+
+import cardTools.CardManager;
+import cardTools.RunConfig;
+import cardTools.SimulatedCardChannelRemote;
+import cardTools.SimulatorServer;
+import logapplet.LogApplet;
+
+/**
+ * Measures APDUs per second of LogApplet hosted by SimulatorServer on
+ * localhost, with several workers sending single APDUs or batches.
+ *
+ * Usage: RemoteThroughputBenchmark [workers] [seconds]
+ */
+public class RemoteThroughputBenchmark {
+
+    final static int DEFAULT_WORKERS = 4;
+    final static int DEFAULT_SECONDS = 3;
+    final static int[] BATCH_SIZES = {1, 16};
+    // INS_SEND_LOG_LEN, answered without touching the log
+    final static byte[] COMMAND = {(byte) 0xB4, 0x50, 0x00, 0x00};
+
+    public static void main(String[] args) throws Exception {
+        int workers = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_WORKERS;
+        long duration = (args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_SECONDS) * 1000000000L;
+
+        try (SimulatorServer server = new SimulatorServer(0, LogApplet.class, ReplayLatencyBenchmark.APPLET_AID,
+                RunConfig.getDefaultConfig().getInstallData())) {
+            System.out.println("SimulatorServer throughput (" + workers + " workers)");
+            for (int batch : BATCH_SIZES) {
+                // First run warms up
+                run(server.getPort(), workers, batch, duration / 3);
+                System.out.printf("batch %3d   %10.0f APDU/s\n", batch, run(server.getPort(), workers, batch, duration));
+            }
+        }
+    }
+
+    static double run(int port, int workers, int batch, long duration) throws Exception {
+        long[] counts = new long[workers];
+        Thread[] threads = new Thread[workers];
+        Exception[] failure = new Exception[1];
+        long start = System.nanoTime();
+        for (int w = 0; w < workers; w++) {
+            final int worker = w;
+            threads[w] = new Thread(() -> {
+                try {
+                    CardManager cardMngr = new CardManager(false, ReplayLatencyBenchmark.APPLET_AID);
+                    RunConfig runCfg = RunConfig.getDefaultConfig();
+                    runCfg.setTestCardType(RunConfig.CARD_TYPE.JCARDSIMREMOTE);
+                    runCfg.setRemotePort(port);
+                    cardMngr.Connect(runCfg);
+                    SimulatedCardChannelRemote channel = (SimulatedCardChannelRemote) cardMngr.getChannel();
+                    byte[][] commands = new byte[batch][];
+                    java.util.Arrays.fill(commands, COMMAND);
+                    while (System.nanoTime() - start < duration) {
+                        for (byte[] response : channel.transmitBatch(commands)) {
+                            if (response[response.length - 2] != (byte) 0x90) {
+                                throw new Exception("Unexpected response");
+                            }
+                        }
+                        counts[worker] += batch;
+                    }
+                    cardMngr.Disconnect(false);
+                } catch (Exception e) {
+                    failure[0] = e;
+                }
+            });
+            threads[w].start();
+        }
+        long total = 0;
+        for (int w = 0; w < workers; w++) {
+            threads[w].join();
+            total += counts[w];
+        }
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        return total * 1e9 / (System.nanoTime() - start);
+    }
+}
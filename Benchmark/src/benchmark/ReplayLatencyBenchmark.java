@@ -0,0 +1,150 @@
+package benchmark;
+
+import cardTools.CardManager;
+import cardTools.RunConfig;
+import cardTools.Util;
+import controlservice.LogFormat;
+import logapplet.LogApplet;
+
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+import java.util.Arrays;
+
+/**
+ * Measures how long LogApplet takes to replay a logged Command APDU depending
+ * on its iteration number. LogApplet runs in jCardSim with a log preloaded by
+ * INS_MODIFY_LOG, then whole sessions are replayed and every APDU is timed.
+ *
+ * Usage: ReplayLatencyBenchmark [iteration ...]
+ */
+public class ReplayLatencyBenchmark {
+
+    final static byte CLA_LOGAPPLET = (byte) 0xB4;
+    final static byte INS_MODIFY_LOG = (byte) 0x52;
+
+    final static byte[] APPLET_AID = Util.hexStringToByteArray("73696d706c666170706c6575");
+    final static int[] DEFAULT_ITERATIONS = {1, 50, 200};
+    final static int RESPONSE_DATA_LEN = 16;
+    final static int WARMUP_SESSIONS = 20;
+    final static int MEASURED_SESSIONS = 100;
+
+    public static void main(String[] args) throws Exception {
+        int[] iterations = DEFAULT_ITERATIONS;
+        if (args.length > 0) {
+            iterations = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                iterations[i] = Integer.parseInt(args[i]);
+            }
+        }
+        int depth = Arrays.stream(iterations).max().getAsInt();
+
+        CardManager cardMngr = connectSimulator();
+        preloadLog(cardMngr, depth);
+
+        for (int s = 0; s < WARMUP_SESSIONS; s++) {
+            replaySession(cardMngr, depth, null, 0);
+        }
+        long[][] times = new long[depth + 1][MEASURED_SESSIONS];
+        for (int s = 0; s < MEASURED_SESSIONS; s++) {
+            replaySession(cardMngr, depth, times, s);
+        }
+
+        System.out.println("LogApplet replay latency (" + MEASURED_SESSIONS + " sessions, log depth " + depth + ")");
+        System.out.println("iteration   median [us]   min [us]");
+        for (int iter : iterations) {
+            long[] sorted = times[iter].clone();
+            Arrays.sort(sorted);
+            System.out.printf("%9d   %11.1f   %8.1f\n", iter,
+                    sorted[sorted.length / 2] / 1000.0, sorted[0] / 1000.0);
+        }
+    }
+
+    /**
+     * Method installing LogApplet into jCardSim with APDU logging switched off.
+     *
+     * @return card with LogApplet
+     */
+    static CardManager connectSimulator() throws Exception {
+        CardManager cardMngr = new CardManager(false, APPLET_AID);
+        RunConfig runCfg = RunConfig.getDefaultConfig();
+        runCfg.setAppletToSimulate(LogApplet.class);
+        runCfg.setTestCardType(RunConfig.CARD_TYPE.JCARDSIMLOCAL);
+        runCfg.setbLogSimulatorApdus(false);
+        if (!cardMngr.Connect(runCfg)) {
+            throw new Exception("Failed to install LogApplet in jCardSim.");
+        }
+        return cardMngr;
+    }
+
+    /**
+     * Method replaying one session from SELECT up to the given iteration.
+     *
+     * @param cardMngr card with the preloaded log
+     * @param depth last replayed iteration
+     * @param times per-iteration times in ns, null when not measured
+     * @param session index of the session in times
+     */
+    static void replaySession(CardManager cardMngr, int depth, long[][] times, int session) throws Exception {
+        // SELECT restarts the iteration count of LogApplet and is replayed as iteration 0
+        checkResponse(cardMngr.transmit(buildCommand(0)), 0, 0);
+        for (int iter = 1; iter <= depth; iter++) {
+            CommandAPDU cmd = buildCommand(iter);
+            long elapsed = -System.nanoTime();
+            ResponseAPDU response = cardMngr.transmit(cmd);
+            elapsed += System.nanoTime();
+            checkResponse(response, iter, RESPONSE_DATA_LEN);
+            if (times != null) {
+                times[iter][session] = elapsed;
+            }
+        }
+    }
+
+    /**
+     * Method writing the log with command and response records for all iterations into the card.
+     *
+     * @param cardMngr card with LogApplet
+     * @param depth last logged iteration
+     */
+    static void preloadLog(CardManager cardMngr, int depth) throws Exception {
+        byte[] log = new byte[(depth + 1) * (RESPONSE_DATA_LEN + 64)];
+        byte[] header = new byte[LogFormat.APDU_HEAD_LEN];
+        int logLen = 0;
+        for (int iter = 0; iter <= depth; iter++) {
+            logLen = LogFormat.COMPACT.putCommand(log, logLen, iter, buildCommand(iter).getBytes(), header);
+            byte[] rspsData = new byte[iter == 0 ? 0 : RESPONSE_DATA_LEN];
+            for (int i = 0; i < rspsData.length; i++) {
+                rspsData[i] = (byte) (iter + i);
+            }
+            logLen = LogFormat.COMPACT.putResponse(log, logLen, iter, rspsData, 0x9000);
+        }
+
+        for (int offset = 0; offset < logLen; offset += 255) {
+            byte[] chunk = Arrays.copyOfRange(log, offset, Math.min(logLen, offset + 255));
+            ResponseAPDU response = cardMngr.transmit(new CommandAPDU(CLA_LOGAPPLET, INS_MODIFY_LOG,
+                    offset >> 8, offset & 0xff, chunk));
+            if (response.getSW() != 0x9000) {
+                throw new Exception("Log preload failed at offset " + offset);
+            }
+        }
+    }
+
+    /**
+     * Method building the Command APDU sent in the given iteration.
+     * Iteration 0 selects LogApplet, others are READ RECORD commands.
+     *
+     * @param iter iteration number
+     * @return Command APDU with Le encoded as zero byte, as LogApplet logs it
+     */
+    static CommandAPDU buildCommand(int iter) {
+        if (iter == 0) {
+            return new CommandAPDU(0x00, 0xA4, 0x04, 0x00, APPLET_AID, 256);
+        }
+        return new CommandAPDU(0x00, 0xB2, iter, 0x0C, 256);
+    }
+
+    static void checkResponse(ResponseAPDU response, int iter, int dataLen) throws Exception {
+        if (response.getSW() != 0x9000 || response.getData().length != dataLen) {
+            throw new Exception("Unexpected response in iteration " + iter + ": " + Util.toHex(response.getBytes()));
+        }
+    }
+}
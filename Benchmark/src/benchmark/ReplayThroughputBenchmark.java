@@ -0,0 +1,75 @@
+package benchmark;
+
+import cardTools.CardManager;
+
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+import java.nio.ByteBuffer;
+
+/**
+ * Measures how many logged APDUs per second LogApplet replays in jCardSim,
+ * once through CommandAPDU objects and once through the ByteBuffer transmit
+ * with preallocated buffers.
+ *
+ * Usage: ReplayThroughputBenchmark [log depth] [seconds]
+ */
+public class ReplayThroughputBenchmark {
+
+    final static int DEFAULT_DEPTH = 100;
+    final static int DEFAULT_SECONDS = 3;
+
+    public static void main(String[] args) throws Exception {
+        int depth = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_DEPTH;
+        long duration = (args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_SECONDS) * 1000000000L;
+
+        CardManager cardMngr = ReplayLatencyBenchmark.connectSimulator();
+        ReplayLatencyBenchmark.preloadLog(cardMngr, depth);
+
+        CommandAPDU[] commands = new CommandAPDU[depth + 1];
+        ByteBuffer[] commandBuffers = new ByteBuffer[depth + 1];
+        for (int iter = 0; iter <= depth; iter++) {
+            commands[iter] = ReplayLatencyBenchmark.buildCommand(iter);
+            commandBuffers[iter] = ByteBuffer.wrap(commands[iter].getBytes());
+        }
+        ByteBuffer response = ByteBuffer.allocate(258);
+        CardChannel channel = cardMngr.getChannel();
+
+        System.out.println("LogApplet replay throughput (log depth " + depth + ")");
+        for (int round = 0; round < 2; round++) {
+            // First round warms up the simulator and JIT
+            boolean report = round > 0;
+            long apdus = 0;
+            long start = System.nanoTime();
+            while (System.nanoTime() - start < duration) {
+                for (CommandAPDU cmd : commands) {
+                    ResponseAPDU rsps = channel.transmit(cmd);
+                    if (rsps.getSW() != 0x9000) {
+                        throw new Exception("Replay failed: " + Integer.toHexString(rsps.getSW()));
+                    }
+                }
+                apdus += commands.length;
+            }
+            if (report) {
+                System.out.printf("CommandAPDU   %10.0f APDU/s\n", apdus * 1e9 / (System.nanoTime() - start));
+            }
+
+            apdus = 0;
+            start = System.nanoTime();
+            while (System.nanoTime() - start < duration) {
+                for (ByteBuffer cmd : commandBuffers) {
+                    cmd.rewind();
+                    response.clear();
+                    int len = channel.transmit(cmd, response);
+                    if (response.get(len - 2) != (byte) 0x90 || response.get(len - 1) != 0x00) {
+                        throw new Exception("Replay failed at iteration " + cmd.get(2));
+                    }
+                }
+                apdus += commandBuffers.length;
+            }
+            if (report) {
+                System.out.printf("ByteBuffer    %10.0f APDU/s\n", apdus * 1e9 / (System.nanoTime() - start));
+            }
+        }
+    }
+}
@@ -3,8 +3,11 @@ package cardTools;
 import com.licel.jcardsim.io.CAD;
 import com.licel.jcardsim.io.JavaxSmartCardInterface;
 import javacard.framework.AID;
+import javacard.framework.Applet;
 
 import javax.smartcardio.*;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -13,11 +16,25 @@ import java.util.List;
  * @author Petr Svenda
  */
 public class CardManager {
+    // PC/SC refuses response buffers with less space, whatever the response length is
+    public static final int RESPONSE_MIN_SPACE = 258;
+    // Longest Response APDU: 65536 bytes of extended response data and SW
+    static final int RESPONSE_MAX_LEN = 65536 + 2;
+
     protected boolean bDebug = false;
     protected byte[] appletId = null;
     protected Long lastTransmitTime = (long) 0;
+    protected long lastTransmitTimeNanos = 0;
+    protected LatencyStats latencyStats = new LatencyStats();
     protected CommandAPDU lastCommand = null;
     protected CardChannel channel = null;
+    protected CardTerminal terminal = null;
+    // Reused by transmit of array slices, grown on demand
+    protected ByteBuffer commandBuffer = ByteBuffer.allocate(4 + 1 + 255 + 1);
+    // Receives responses for response buffers refused by PC/SC as too small
+    protected ByteBuffer spareResponse = null;
+    // Nesting level of beginExclusive, card is locked while above zero
+    protected int exclusiveDepth = 0;
     
     public CardManager(boolean bDebug, byte[] appletAID) {
         this.bDebug = bDebug;
@@ -42,11 +59,13 @@ public class CardManager {
                 break;
             }
             case JCARDSIMLOCAL: {
-                channel = ConnectJCardSimLocalSimulator(runCfg.appletToSimulate, runCfg.installData);
+                channel = ConnectJCardSimLocalSimulator(runCfg.appletToSimulate, runCfg.installData, runCfg.bLogSimulatorApdus)
+                        .setOperationTimes(runCfg.operationTimes);
                 break;
             }
             case JCARDSIMREMOTE: {
-                channel = null; // Not implemented yet
+                channel = ConnectJCardSimRemoteSimulator(runCfg.remoteHost, runCfg.remotePort)
+                        .setOperationTimes(runCfg.operationTimes);
                 break;
             }
             default:
@@ -77,7 +96,18 @@ public class CardManager {
         return connectToCardByTerminalFactory(TerminalFactory.getInstance("JcopEmulator", ports), targetReaderIndex);
     }
 
-    private CardChannel ConnectJCardSimLocalSimulator(Class appletClass, byte[] installData) throws Exception {
+    private SimulatedCardChannelLocal ConnectJCardSimLocalSimulator(Class<? extends Applet> appletClass, byte[] installData, boolean bLogApdus) throws Exception {
+        return new SimulatedCardChannelLocal(createSimulator(appletClass, appletId, installData), bLogApdus);
+    }
+
+    public SimulatedCardChannelRemote ConnectJCardSimRemoteSimulator(String host, int port) throws Exception {
+        System.out.print("Connecting to simulator at " + host + ":" + port + "...");
+        SimulatedCardChannelRemote remoteChannel = new SimulatedCardChannelRemote(host, port);
+        System.out.println(" Done.");
+        return remoteChannel;
+    }
+
+    static JavaxSmartCardInterface createSimulator(Class<? extends Applet> appletClass, byte[] appletId, byte[] installData) {
         System.setProperty("com.licel.jcardsim.terminal.type", "2");
         CAD cad = new CAD(System.getProperties());
         JavaxSmartCardInterface simulator = (JavaxSmartCardInterface) cad.getCardInterface();
@@ -88,8 +118,7 @@ public class CardManager {
 
         AID appletAIDRes = simulator.installApplet(appletAID, appletClass, installData, (short) 0, (byte) installData.length);
         simulator.selectApplet(appletAID);
-
-        return new SimulatedCardChannelLocal(simulator);
+        return simulator;
     }
 
     private CardChannel connectToCardByTerminalFactory(TerminalFactory factory, int targetReaderIndex) throws CardException {
@@ -122,6 +151,7 @@ public class CardManager {
 
             System.out.print("Establishing channel...");
             channel = card.getBasicChannel();
+            this.terminal = terminal;
 
             System.out.println(" Done.");
 
@@ -149,31 +179,187 @@ public class CardManager {
             log(cmd);
         }
 
-        long elapsed = -System.currentTimeMillis();
+        long elapsed = -System.nanoTime();
         ResponseAPDU response = channel.transmit(cmd);
-        elapsed += System.currentTimeMillis();
-        lastTransmitTime = elapsed;
+        elapsed += System.nanoTime();
+        lastTransmitTimeNanos = elapsed;
+        lastTransmitTime = elapsed / 1000000;
+        latencyStats.record(cmd.getCLA(), cmd.getINS(), elapsed);
 
         if (bDebug == true) {
-            log(response, lastTransmitTime);
+            log(response, lastTransmitTimeNanos);
         }
 
         return response;
     }
 
+    /**
+     * Sends Command APDU between position and limit of command buffer without
+     * creating APDU objects. Response data followed by SW are put at position
+     * of response buffer, which needs room only for the actual response.
+     * Buffers are reused by the caller, so nothing is allocated per exchange
+     * unless debug output is on. lastCommand is not updated.
+     *
+     * @param command Command APDU
+     * @param response buffer receiving the Response APDU
+     * @return length of the Response APDU including SW
+     * @throws CardException if the exchange fails
+     * @throws BufferOverflowException if the response does not fit into the response buffer
+     */
+    public int transmit(ByteBuffer command, ByteBuffer response)
+            throws CardException {
+
+        int cla = command.get(command.position()) & 0xff;
+        int ins = command.get(command.position() + 1) & 0xff;
+        if (bDebug == true) {
+            log(command);
+        }
+        ByteBuffer target = response;
+        if (response.remaining() < RESPONSE_MIN_SPACE) {
+            if (spareResponse == null) {
+                spareResponse = ByteBuffer.allocate(RESPONSE_MAX_LEN);
+            }
+            target = spareResponse;
+            target.clear();
+        }
+        int responseStart = target.position();
+
+        long elapsed = -System.nanoTime();
+        int len = channel.transmit(command, target);
+        elapsed += System.nanoTime();
+        lastTransmitTimeNanos = elapsed;
+        lastTransmitTime = elapsed / 1000000;
+        latencyStats.record(cla, ins, elapsed);
+
+        if (bDebug == true) {
+            log(target, responseStart, len, lastTransmitTimeNanos);
+        }
+        if (target != response) {
+            target.flip();
+            response.put(target);
+        }
+        return len;
+    }
+
+    /**
+     * Builds Command APDU from a slice of the array in the reused command
+     * buffer and sends it, encoded as by CommandAPDU: short APDU when data
+     * and Ne fit, Extended APDU otherwise.
+     *
+     * @param cla class byte
+     * @param ins instruction byte
+     * @param p1 parameter 1
+     * @param p2 parameter 2
+     * @param data array holding command data, may be null when dataLen is 0
+     * @param dataOffset offset of command data in the array
+     * @param dataLen length of command data, 0 to 65535
+     * @param ne maximal expected length of response data, 0 to 65536
+     * @param response buffer receiving the Response APDU
+     * @return length of the Response APDU including SW
+     * @throws CardException if the exchange fails
+     */
+    public int transmit(int cla, int ins, int p1, int p2, byte[] data, int dataOffset, int dataLen, int ne,
+            ByteBuffer response) throws CardException {
+
+        if (dataLen < 0 || dataLen > 65535) {
+            throw new IllegalArgumentException("dataLen is too large: " + dataLen);
+        }
+        if (ne < 0 || ne > 65536) {
+            throw new IllegalArgumentException("ne is too large: " + ne);
+        }
+        boolean extended = dataLen > 255 || ne > 256;
+        int len = 4 + (dataLen > 0 ? (extended ? 3 : 1) + dataLen : 0)
+                + (ne > 0 ? (extended ? (dataLen > 0 ? 2 : 3) : 1) : 0);
+        if (commandBuffer.capacity() < len) {
+            commandBuffer = ByteBuffer.allocate(len);
+        }
+        ByteBuffer cmd = commandBuffer;
+        cmd.clear();
+        cmd.put((byte) cla).put((byte) ins).put((byte) p1).put((byte) p2);
+        if (dataLen > 0) {
+            if (extended) {
+                cmd.put((byte) 0).put((byte) (dataLen >> 8));
+            }
+            cmd.put((byte) dataLen).put(data, dataOffset, dataLen);
+        }
+        if (ne > 0) {
+            if (extended) {
+                if (dataLen == 0) {
+                    cmd.put((byte) 0);
+                }
+                // Ne of 65536 is encoded as 0000, 256 as 00
+                cmd.put((byte) (ne >> 8));
+            }
+            cmd.put((byte) ne);
+        }
+        cmd.flip();
+        return transmit(cmd, response);
+    }
+
+    /**
+     * Method starting exclusive access to the card. PC/SC does not arbitrate
+     * every APDU then and no other application can interleave its APDUs
+     * until endExclusive. Exclusive access belongs to the calling thread.
+     * Calls nest, the card is released by the outermost endExclusive.
+     *
+     * @throws CardException if exclusive access cannot be established
+     */
+    public void beginExclusive() throws CardException {
+        if (exclusiveDepth == 0) {
+            Card card = channel.getCard();
+            // Stub channels have no card to lock
+            if (card != null) {
+                card.beginExclusive();
+            }
+        }
+        exclusiveDepth++;
+    }
+
+    /**
+     * Method ending exclusive access started by beginExclusive.
+     *
+     * @throws CardException if the card cannot be released
+     */
+    public void endExclusive() throws CardException {
+        if (exclusiveDepth == 0) {
+            throw new IllegalStateException("endExclusive without beginExclusive");
+        }
+        exclusiveDepth--;
+        if (exclusiveDepth == 0) {
+            Card card = channel.getCard();
+            if (card != null) {
+                card.endExclusive();
+            }
+        }
+    }
+
+    private void log(ByteBuffer command) {
+        byte[] bytes = new byte[command.remaining()];
+        command.duplicate().get(bytes);
+        System.out.printf("--> %s\n", Util.toHex(bytes));
+    }
+
+    private void log(ByteBuffer response, int offset, int len, long timeNanos) {
+        byte[] bytes = new byte[len];
+        ByteBuffer view = response.duplicate();
+        view.position(offset);
+        view.get(bytes);
+        log(new ResponseAPDU(bytes), timeNanos);
+    }
+
     private void log(CommandAPDU cmd) {
         System.out.printf("--> %s\n", Util.toHex(cmd.getBytes()),
                 cmd.getBytes().length);
     }
 
-    private void log(ResponseAPDU response, long time) {
+    private void log(ResponseAPDU response, long timeNanos) {
         String swStr = String.format("%02X", response.getSW());
         byte[] data = response.getData();
         if (data.length > 0) {
-            System.out.printf("<-- %s %s (%d) [%d ms]\n", Util.toHex(data), swStr,
-                    data.length, time);
+            System.out.printf("<-- %s %s (%d) [%.3f ms]\n", Util.toHex(data), swStr,
+                    data.length, timeNanos / 1e6);
         } else {
-            System.out.printf("<-- %s [%d ms]\n", swStr, time);
+            System.out.printf("<-- %s [%.3f ms]\n", swStr, timeNanos / 1e6);
         }
     }
 
@@ -205,6 +391,14 @@ public class CardManager {
         return lastTransmitTime;
     }
 
+    public long getLastTransmitTimeNanos() {
+        return lastTransmitTimeNanos;
+    }
+
+    public LatencyStats getLatencyStats() {
+        return latencyStats;
+    }
+
     public CommandAPDU getLastCommand() {
         return lastCommand;
     }
@@ -213,6 +407,10 @@ public class CardManager {
         return channel;
     }
 
+    public CardTerminal getTerminal() {
+        return terminal;
+    }
+
     public CardManager setbDebug(boolean bDebug) {
         this.bDebug = bDebug;
         return this;
@@ -228,6 +426,11 @@ public class CardManager {
         return this;
     }
 
+    public CardManager setLatencyStats(LatencyStats latencyStats) {
+        this.latencyStats = latencyStats;
+        return this;
+    }
+
     public CardManager setLastCommand(CommandAPDU lastCommand) {
         this.lastCommand = lastCommand;
         return this;
@@ -237,4 +440,9 @@ public class CardManager {
         this.channel = channel;
         return this;
     }
+
+    public CardManager setTerminal(CardTerminal terminal) {
+        this.terminal = terminal;
+        return this;
+    }
 }
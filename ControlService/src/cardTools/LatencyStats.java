@@ -0,0 +1,84 @@
+package cardTools;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Latency histograms of APDU exchanges keyed by CLA and INS of Command APDU.
+ * One instance can be shared by several CardManager objects talking to the
+ * same card, e.g. across reconnects.
+ */
+public class LatencyStats {
+    private final Map<Integer, LatencyHistogram> histograms = new HashMap<>();
+    private final LatencyHistogram all = new LatencyHistogram();
+
+    public synchronized void record(int cla, int ins, long nanos) {
+        int key = ((cla & 0xff) << 8) | (ins & 0xff);
+        LatencyHistogram histogram = histograms.get(key);
+        if (histogram == null) {
+            histogram = new LatencyHistogram();
+            histograms.put(key, histogram);
+        }
+        histogram.record(nanos);
+        all.record(nanos);
+    }
+
+    /**
+     * @return copy of the histogram of CLA/INS, null if none was recorded,
+     * later records do not change it
+     */
+    public synchronized LatencyHistogram get(int cla, int ins) {
+        LatencyHistogram histogram = histograms.get(((cla & 0xff) << 8) | (ins & 0xff));
+        return histogram == null ? null : copy(histogram);
+    }
+
+    /**
+     * @return copy of the histogram of all APDUs, later records do not change it
+     */
+    public synchronized LatencyHistogram getAll() {
+        return copy(all);
+    }
+
+    public synchronized boolean isEmpty() {
+        return all.getCount() == 0;
+    }
+
+    /**
+     * Prints p50, p99 and max latency per CLA/INS, commands taking the most
+     * time in total go first.
+     * @param out destination
+     * @param title heading of the table
+     */
+    public synchronized void print(PrintStream out, String title) {
+        List<Map.Entry<Integer, LatencyHistogram>> entries = new ArrayList<>(histograms.entrySet());
+        entries.sort((a, b) -> Long.compare(b.getValue().getTotal(), a.getValue().getTotal()));
+        StringBuilder sb = new StringBuilder();
+        sb.append(title).append(System.lineSeparator());
+        sb.append("CLA INS     count   total [ms]   p50 [us]   p99 [us]   max [us]").append(System.lineSeparator());
+        for (Map.Entry<Integer, LatencyHistogram> e : entries) {
+            byte[] claIns = Util.shortToByteArray(e.getKey());
+            Util.appendHex(sb, claIns, 0, 1).append("  ");
+            Util.appendHex(sb, claIns, 1, 1).append(' ');
+            appendRow(sb, e.getValue());
+        }
+        sb.append("all    ");
+        appendRow(sb, all);
+        out.print(sb);
+        out.flush();
+    }
+
+    private static LatencyHistogram copy(LatencyHistogram histogram) {
+        LatencyHistogram copy = new LatencyHistogram();
+        copy.add(histogram);
+        return copy;
+    }
+
+    private static void appendRow(StringBuilder sb, LatencyHistogram h) {
+        sb.append(String.format(" %9d %12.3f %10.1f %10.1f %10.1f", h.getCount(), h.getTotal() / 1e6,
+                h.getPercentile(50) / 1e3, h.getPercentile(99) / 1e3, h.getMax() / 1e3));
+        sb.append(System.lineSeparator());
+    }
+}
@@ -0,0 +1,92 @@
+package cardTools;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Delays of card operations per CLA/INS, used by simulated channels to
+ * behave like a real card.
+ *
+ * Profile lines are | CLA | INS | delay [us] | or rows of the latency table
+ * printed by ControlService, where p50 is taken as delay. Row "all" sets
+ * delay of other commands. Other lines are ignored.
+ */
+public class OperationTimes {
+    // Parking is not precise enough for the last part of delay
+    static final long SPIN_NANOS = 1000000;
+
+    private final Map<Integer, Long> delays = new HashMap<>();
+    private long defaultDelay = 0;
+
+    public void setDelay(int cla, int ins, long nanos) {
+        delays.put(((cla & 0xff) << 8) | (ins & 0xff), nanos);
+    }
+
+    public void setDefaultDelay(long nanos) {
+        defaultDelay = nanos;
+    }
+
+    /**
+     * @param apdu Command APDU
+     * @return delay of card processing the command in ns
+     */
+    public long getCardOperationDelay(byte[] apdu) {
+        if (apdu.length < 2) {
+            return defaultDelay;
+        }
+        Long delay = delays.get(((apdu[0] & 0xff) << 8) | (apdu[1] & 0xff));
+        return delay != null ? delay : defaultDelay;
+    }
+
+    /**
+     * Waits for the delay of the command.
+     * @param apdu Command APDU
+     */
+    public void delay(byte[] apdu) {
+        long deadline = System.nanoTime() + getCardOperationDelay(apdu);
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            if (remaining > SPIN_NANOS) {
+                LockSupport.parkNanos(remaining - SPIN_NANOS);
+            }
+        }
+    }
+
+    public static OperationTimes load(String fileName) throws IOException {
+        try (Reader in = new InputStreamReader(new FileInputStream(fileName), StandardCharsets.UTF_8)) {
+            return load(in);
+        }
+    }
+
+    public static OperationTimes load(Reader in) throws IOException {
+        OperationTimes times = new OperationTimes();
+        BufferedReader reader = new BufferedReader(in);
+        String line;
+        while ((line = reader.readLine()) != null) {
+            String[] fields = line.trim().split("\\s+");
+            try {
+                if (fields[0].equalsIgnoreCase("all") && fields.length >= 2) {
+                    times.setDefaultDelay(toNanos(fields.length >= 6 ? fields[3] : fields[1]));
+                } else if (fields.length >= 3 && fields[0].length() == 2 && fields[1].length() == 2) {
+                    int cla = Integer.parseInt(fields[0], 16);
+                    int ins = Integer.parseInt(fields[1], 16);
+                    times.setDelay(cla, ins, toNanos(fields.length >= 7 ? fields[4] : fields[2]));
+                }
+            } catch (NumberFormatException e) {
+                // heading or comment
+            }
+        }
+        return times;
+    }
+
+    private static long toNanos(String micros) {
+        return (long) (Double.parseDouble(micros) * 1000);
+    }
+}
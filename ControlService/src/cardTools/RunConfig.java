@@ -1,5 +1,7 @@
 package cardTools;
 
+import javacard.framework.Applet;
+
 /**
  * Applet run configuration.
  *
@@ -8,9 +10,13 @@ package cardTools;
 public class RunConfig {
     int targetReaderIndex = 0;
     public int numRepeats = 1;
-    public Class appletToSimulate;
+    public Class<? extends Applet> appletToSimulate;
     boolean bReuploadApplet = false;
     byte[] installData = null;
+    boolean bLogSimulatorApdus = true;
+    OperationTimes operationTimes = null;
+    String remoteHost = "localhost";
+    int remotePort = SimulatorServer.DEFAULT_PORT;
     
     public enum CARD_TYPE {
         PHYSICAL, JCOPSIM, JCARDSIMLOCAL, JCARDSIMREMOTE
@@ -35,7 +41,7 @@ public class RunConfig {
         return numRepeats;
     }
 
-    public Class getAppletToSimulate() {
+    public Class<? extends Applet> getAppletToSimulate() {
         return appletToSimulate;
     }
 
@@ -51,6 +57,22 @@ public class RunConfig {
         return testCardType;
     }
 
+    public boolean isbLogSimulatorApdus() {
+        return bLogSimulatorApdus;
+    }
+
+    public OperationTimes getOperationTimes() {
+        return operationTimes;
+    }
+
+    public String getRemoteHost() {
+        return remoteHost;
+    }
+
+    public int getRemotePort() {
+        return remotePort;
+    }
+
     public RunConfig setTargetReaderIndex(int targetReaderIndex) {
         this.targetReaderIndex = targetReaderIndex;
         return this;
@@ -61,7 +83,7 @@ public class RunConfig {
         return this;
     }
 
-    public RunConfig setAppletToSimulate(Class appletToSimulate) {
+    public RunConfig setAppletToSimulate(Class<? extends Applet> appletToSimulate) {
         this.appletToSimulate = appletToSimulate;
         return this;
     }
@@ -80,4 +102,24 @@ public class RunConfig {
         this.testCardType = testCardType;
         return this;
     }
+
+    public RunConfig setbLogSimulatorApdus(boolean bLogSimulatorApdus) {
+        this.bLogSimulatorApdus = bLogSimulatorApdus;
+        return this;
+    }
+
+    public RunConfig setOperationTimes(OperationTimes operationTimes) {
+        this.operationTimes = operationTimes;
+        return this;
+    }
+
+    public RunConfig setRemoteHost(String remoteHost) {
+        this.remoteHost = remoteHost;
+        return this;
+    }
+
+    public RunConfig setRemotePort(int remotePort) {
+        this.remotePort = remotePort;
+        return this;
+    }
 }
@@ -33,12 +33,12 @@ public class SimulatedCard extends Card {
 
     @Override
     public void beginExclusive() throws CardException {
-        throw new UnsupportedOperationException("Not supported yet."); 
+        // do nothing, simulator processes one APDU at a time
     }
 
     @Override
     public void endExclusive() throws CardException {
-        throw new UnsupportedOperationException("Not supported yet."); 
+        // do nothing
     }
 
     @Override
@@ -10,14 +10,30 @@ import java.nio.ByteBuffer;
  * @author Petr Svenda
  */
 public class SimulatedCardChannelLocal extends CardChannel {
+    // Longest extended Command APDU: header, 3 bytes Lc, 65535 bytes data, 2 bytes Le
+    static final int MAX_APDU_LEN = 4 + 3 + 65535 + 2;
+    // Command APDUs up to 4 kB of data get pooled arrays, longer ones are allocated
+    static final int POOLED_APDU_MAX_LEN = 4 + 3 + 4096 + 2;
+
     JavaxSmartCardInterface m_simulator;
     SimulatedCard m_card;
+    boolean m_bLogApdus = true;
+    // Delays of real card, null for no delay
+    OperationTimes m_operationTimes = null;
+    // Simulator takes the Command APDU as an exact length array, one reused array per length
+    byte[][] m_commandPool = new byte[POOLED_APDU_MAX_LEN + 1][];
+    StringBuilder m_logLine = new StringBuilder();
     
     SimulatedCardChannelLocal (JavaxSmartCardInterface simulator) {
         m_simulator = simulator;
         m_card = new SimulatedCard();
     }
 
+    SimulatedCardChannelLocal (JavaxSmartCardInterface simulator, boolean bLogApdus) {
+        this(simulator);
+        m_bLogApdus = bLogApdus;
+    }
+
     @Override
     public Card getCard() {
         return m_card;
@@ -33,12 +49,18 @@ public class SimulatedCardChannelLocal extends CardChannel {
         ResponseAPDU responseAPDU = null;
 
         try {
-            log(apdu);
-            responseAPDU = this.m_simulator.transmitCommand(apdu);
-            log(responseAPDU);
-            // TODO: Add delay corresponding to real cards
-            //int delay = OperationTimes.getCardOperationDelay(apdu);
-            //Thread.sleep(delay);
+            byte[] command = apdu.getBytes();
+            if (m_bLogApdus) {
+                logCommand(command, 0, command.length);
+            }
+            byte[] response = this.m_simulator.transmitCommand(command);
+            if (m_operationTimes != null) {
+                m_operationTimes.delay(command);
+            }
+            responseAPDU = new ResponseAPDU(response);
+            if (m_bLogApdus) {
+                logResponse(response, 0, response.length);
+            }
         } catch (Exception ex) {
             ex.printStackTrace();
         }
@@ -46,36 +68,99 @@ public class SimulatedCardChannelLocal extends CardChannel {
         return responseAPDU;
     }
 
+    /**
+     * Sends Command APDU between position and limit of command buffer and
+     * puts the Response APDU at position of response buffer. Heap buffers
+     * holding exactly the Command APDU are passed to simulator without copy.
+     * @param command Command APDU
+     * @param response buffer for Response APDU including SW
+     * @return length of Response APDU
+     * @throws CardException if simulator fails
+     */
     @Override
-    public int transmit(ByteBuffer bb, ByteBuffer bb1) throws CardException {
-        throw new UnsupportedOperationException("Not supported yet.");
+    public int transmit(ByteBuffer command, ByteBuffer response) throws CardException {
+        if (command == response) {
+            throw new IllegalArgumentException("Command and response must not be the same buffer");
+        }
+        int len = command.remaining();
+        if (len < 4 || len > MAX_APDU_LEN) {
+            throw new IllegalArgumentException("Invalid Command APDU length " + len);
+        }
+        byte[] cmd;
+        if (command.hasArray() && command.arrayOffset() == 0 && command.position() == 0 && command.array().length == len) {
+            cmd = command.array();
+            command.position(command.limit());
+        } else {
+            cmd = len <= POOLED_APDU_MAX_LEN ? m_commandPool[len] : null;
+            if (cmd == null) {
+                cmd = new byte[len];
+                if (len <= POOLED_APDU_MAX_LEN) {
+                    m_commandPool[len] = cmd;
+                }
+            }
+            command.get(cmd);
+        }
+        if (m_bLogApdus) {
+            logCommand(cmd, 0, len);
+        }
+        byte[] rsps;
+        try {
+            rsps = m_simulator.transmitCommand(cmd);
+        } catch (Exception ex) {
+            throw new CardException("Simulator failed to process Command APDU", ex);
+        }
+        if (m_operationTimes != null) {
+            m_operationTimes.delay(cmd);
+        }
+        response.put(rsps);
+        if (m_bLogApdus) {
+            logResponse(rsps, 0, rsps.length);
+        }
+        return rsps.length;
     }
 
     @Override
     public void close() throws CardException {
         m_simulator.reset();
     }
+
+    public boolean isbLogApdus() {
+        return m_bLogApdus;
+    }
+
+    public SimulatedCardChannelLocal setbLogApdus(boolean bLogApdus) {
+        m_bLogApdus = bLogApdus;
+        return this;
+    }
+
+    public OperationTimes getOperationTimes() {
+        return m_operationTimes;
+    }
+
+    public SimulatedCardChannelLocal setOperationTimes(OperationTimes operationTimes) {
+        m_operationTimes = operationTimes;
+        return this;
+    }
     
     
-    private static void log(CommandAPDU cmd) {
-        System.out.printf("--> [%s] %s\n", Util.toHex(cmd.getBytes()), cmd.getBytes().length);
+    private void logCommand(byte[] cmd, int offset, int len) {
+        m_logLine.setLength(0);
+        m_logLine.append("--> [");
+        Util.appendHex(m_logLine, cmd, offset, len);
+        System.out.println(m_logLine.append("] ").append(len));
     }
 
-    private static void log(ResponseAPDU response, long time) {
-        String swStr = String.format("%02X", response.getSW());
-        byte[] data = response.getData();
-        if (data.length > 0) {
-            System.out.printf("<-- %s %s (%d)\n", Util.toHex(data), swStr,
-                    data.length);
-        } else {
-            System.out.printf("<-- %s\n", swStr);
+    private void logResponse(byte[] response, int offset, int len) {
+        m_logLine.setLength(0);
+        m_logLine.append("<-- ");
+        int dataLen = len - 2;
+        if (dataLen > 0) {
+            Util.appendHex(m_logLine, response, offset, dataLen).append(' ');
         }
-        if (time > 0) {
-            System.out.printf(String.format("Elapsed time %d ms\n", time));
+        Util.appendHex(m_logLine, response, offset + dataLen, 2);
+        if (dataLen > 0) {
+            m_logLine.append(" (").append(dataLen).append(')');
         }
+        System.out.println(m_logLine);
     }
-
-    private static void log(ResponseAPDU response) {
-        log(response, 0);
-    }    
 }
@@ -0,0 +1,189 @@
+package cardTools;
+
+import javax.smartcardio.*;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+/**
+ * Channel to applet hosted by SimulatorServer. One TCP connection is kept
+ * for the whole life of the channel.
+ *
+ * Request and response frame is | APDU count (4) | APDUs |, every APDU is
+ * | length (4) | bytes |. Responses come in the order of commands.
+ */
+public class SimulatedCardChannelRemote extends CardChannel {
+    static final int MAX_BATCH = 0xffff;
+
+    Socket m_socket;
+    DataInputStream m_in;
+    DataOutputStream m_out;
+    SimulatedCard m_card;
+    // Delays of real card, null for no delay
+    OperationTimes m_operationTimes = null;
+    // Command and response of transmit(ByteBuffer, ByteBuffer), reused and grown on demand
+    byte[] m_command = new byte[4 + 1 + 255 + 1];
+    byte[] m_response = new byte[256 + 2];
+
+    SimulatedCardChannelRemote(String host, int port) throws IOException {
+        m_socket = new Socket(host, port);
+        m_socket.setTcpNoDelay(true);
+        m_in = new DataInputStream(new BufferedInputStream(m_socket.getInputStream()));
+        m_out = new DataOutputStream(new BufferedOutputStream(m_socket.getOutputStream()));
+        m_card = new SimulatedCard() {
+            @Override
+            public void disconnect(boolean bln) throws CardException {
+                close();
+            }
+        };
+    }
+
+    @Override
+    public Card getCard() {
+        return m_card;
+    }
+
+    @Override
+    public int getChannelNumber() {
+        return 0;
+    }
+
+    @Override
+    public ResponseAPDU transmit(CommandAPDU apdu) throws CardException {
+        return new ResponseAPDU(transmitBatch(new byte[][] {apdu.getBytes()})[0]);
+    }
+
+    /**
+     * Sends Command APDU between position and limit of command buffer and
+     * puts the Response APDU at position of response buffer. Frame of the
+     * single APDU is written and read through reused arrays, nothing is
+     * allocated per APDU.
+     * @param command Command APDU
+     * @param response buffer for Response APDU including SW
+     * @return length of Response APDU
+     * @throws CardException if connection fails
+     */
+    @Override
+    public synchronized int transmit(ByteBuffer command, ByteBuffer response) throws CardException {
+        if (command == response) {
+            throw new IllegalArgumentException("Command and response must not be the same buffer");
+        }
+        int len = command.remaining();
+        if (len < 4 || len > SimulatedCardChannelLocal.MAX_APDU_LEN) {
+            throw new IllegalArgumentException("Invalid Command APDU length " + len);
+        }
+        if (m_command.length < len) {
+            m_command = new byte[len];
+        }
+        command.get(m_command, 0, len);
+        int rspsLen;
+        try {
+            m_out.writeInt(1);
+            m_out.writeInt(len);
+            m_out.write(m_command, 0, len);
+            m_out.flush();
+            if (m_in.readInt() != 1) {
+                throw new CardException("Simulator returned unexpected number of responses");
+            }
+            rspsLen = m_in.readInt();
+            if (rspsLen < 0 || rspsLen > SimulatedCardChannelLocal.MAX_APDU_LEN) {
+                throw new CardException("Simulator returned invalid APDU length " + rspsLen);
+            }
+            if (m_response.length < rspsLen) {
+                m_response = new byte[rspsLen];
+            }
+            m_in.readFully(m_response, 0, rspsLen);
+        } catch (IOException e) {
+            throw new CardException("Connection to simulator failed", e);
+        }
+        if (m_operationTimes != null) {
+            m_operationTimes.delay(m_command);
+        }
+        response.put(m_response, 0, rspsLen);
+        return rspsLen;
+    }
+
+    /**
+     * Sends several Command APDUs in one request. Server processes them
+     * without APDUs of other clients in between.
+     * @param commands Command APDUs
+     * @return Response APDUs including SW
+     * @throws CardException if connection fails
+     */
+    public synchronized byte[][] transmitBatch(byte[][] commands) throws CardException {
+        try {
+            writeFrame(m_out, commands);
+            m_out.flush();
+            byte[][] responses = readFrame(m_in);
+            if (responses == null || responses.length != commands.length) {
+                throw new CardException("Simulator returned unexpected number of responses");
+            }
+            if (m_operationTimes != null) {
+                for (byte[] command : commands) {
+                    m_operationTimes.delay(command);
+                }
+            }
+            return responses;
+        } catch (IOException e) {
+            throw new CardException("Connection to simulator failed", e);
+        }
+    }
+
+    public OperationTimes getOperationTimes() {
+        return m_operationTimes;
+    }
+
+    public SimulatedCardChannelRemote setOperationTimes(OperationTimes operationTimes) {
+        m_operationTimes = operationTimes;
+        return this;
+    }
+
+    @Override
+    public void close() throws CardException {
+        try {
+            m_socket.close();
+        } catch (IOException e) {
+            throw new CardException("Closing connection to simulator failed", e);
+        }
+    }
+
+    static void writeFrame(DataOutputStream out, byte[][] apdus) throws IOException {
+        out.writeInt(apdus.length);
+        for (byte[] apdu : apdus) {
+            out.writeInt(apdu.length);
+            out.write(apdu);
+        }
+    }
+
+    /**
+     * Reads frame of APDUs.
+     * @param in connection
+     * @return APDUs or null if connection was closed before the frame
+     * @throws IOException if frame is broken
+     */
+    static byte[][] readFrame(DataInputStream in) throws IOException {
+        int count;
+        try {
+            count = in.readInt();
+        } catch (java.io.EOFException e) {
+            return null;
+        }
+        if (count < 0 || count > MAX_BATCH) {
+            throw new IOException("Invalid APDU count " + count);
+        }
+        byte[][] apdus = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            int len = in.readInt();
+            if (len < 0 || len > SimulatedCardChannelLocal.MAX_APDU_LEN) {
+                throw new IOException("Invalid APDU length " + len);
+            }
+            apdus[i] = new byte[len];
+            in.readFully(apdus[i]);
+        }
+        return apdus;
+    }
+}
@@ -0,0 +1,113 @@
+package cardTools;
+
+import com.licel.jcardsim.io.JavaxSmartCardInterface;
+import javacard.framework.Applet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * TCP server hosting one applet in jCardSim for SimulatedCardChannelRemote
+ * clients (card type JCARDSIMREMOTE). Clients share the simulated card, APDUs
+ * of one request are processed together, requests of clients are serialized.
+ *
+ * Usage: SimulatorServer [port] [applet class] [applet AID] [install data]
+ *
+ * Applet defaults to LogApplet, install data to LogApplet's default log size.
+ */
+public class SimulatorServer implements Closeable {
+    public static final int DEFAULT_PORT = 9025;
+    static final String DEFAULT_APPLET = "logapplet.LogApplet";
+    static final String DEFAULT_AID = "73696d706c666170706c6575";
+
+    private final JavaxSmartCardInterface m_simulator;
+    private final ServerSocket m_serverSocket;
+    private final ExecutorService m_workers = Executors.newCachedThreadPool();
+
+    /**
+     * Installs applet and starts listening on loopback interface.
+     * @param port TCP port, 0 for any free port
+     * @param appletClass applet to host
+     * @param appletAID AID of applet
+     * @param installData install parameters of applet
+     * @throws IOException if port cannot be opened
+     */
+    public SimulatorServer(int port, Class<? extends Applet> appletClass, byte[] appletAID, byte[] installData) throws IOException {
+        m_simulator = CardManager.createSimulator(appletClass, appletAID, installData);
+        m_serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        m_workers.execute(this::acceptClients);
+    }
+
+    public int getPort() {
+        return m_serverSocket.getLocalPort();
+    }
+
+    @Override
+    public void close() throws IOException {
+        m_serverSocket.close();
+        m_workers.shutdownNow();
+    }
+
+    private void acceptClients() {
+        while (!m_serverSocket.isClosed()) {
+            try {
+                Socket client = m_serverSocket.accept();
+                m_workers.execute(() -> serve(client));
+            } catch (IOException e) {
+                if (!m_serverSocket.isClosed()) {
+                    System.out.println("Accepting client failed: " + e);
+                }
+            }
+        }
+    }
+
+    private void serve(Socket client) {
+        try (Socket socket = client) {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            byte[][] commands;
+            while ((commands = SimulatedCardChannelRemote.readFrame(in)) != null) {
+                byte[][] responses = new byte[commands.length][];
+                // Simulator is not thread safe, batch of one client is never interleaved
+                synchronized (m_simulator) {
+                    for (int i = 0; i < commands.length; i++) {
+                        responses[i] = transmit(commands[i]);
+                    }
+                }
+                SimulatedCardChannelRemote.writeFrame(out, responses);
+                out.flush();
+            }
+        } catch (IOException e) {
+            System.out.println("Client connection failed: " + e);
+        }
+    }
+
+    private byte[] transmit(byte[] command) {
+        try {
+            return m_simulator.transmitCommand(command);
+        } catch (RuntimeException e) {
+            // SW_UNKNOWN for malformed commands, as real card would answer
+            return new byte[] {(byte) 0x6F, 0x00};
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        Class<? extends Applet> appletClass = Class.forName(args.length > 1 ? args[1] : DEFAULT_APPLET)
+                .asSubclass(Applet.class);
+        byte[] aid = Util.hexStringToByteArray(args.length > 2 ? args[2] : DEFAULT_AID);
+        byte[] installData = args.length > 3 ? Util.hexStringToByteArray(args[3]) : RunConfig.getDefaultConfig().getInstallData();
+        SimulatorServer server = new SimulatorServer(port, appletClass, aid, installData);
+        System.out.println("Simulator of " + appletClass.getName() + " listening on port " + server.getPort());
+    }
+}
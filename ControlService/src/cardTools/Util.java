@@ -1,5 +1,6 @@
 package cardTools;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 
@@ -9,41 +10,112 @@ import java.nio.ByteOrder;
  */
 public class Util {
 
+    private static final char[] HEX_CHARS = "0123456789ABCDEF".toCharArray();
+    private static final byte[] HEX_VALUES = new byte[128];
+
+    static {
+        java.util.Arrays.fill(HEX_VALUES, (byte) -1);
+        for (int i = 0; i < 16; i++) {
+            HEX_VALUES[HEX_CHARS[i]] = (byte) i;
+            HEX_VALUES[Character.toLowerCase(HEX_CHARS[i])] = (byte) i;
+        }
+    }
+
     public static String toHex(byte[] bytes) {
         return toHex(bytes, 0, bytes.length);
     }
 
     public static String toHex(byte[] bytes, int offset, int len) {
-        StringBuilder result = new StringBuilder();
+        char[] hexChars = new char[len * 2];
+        toHex(bytes, offset, len, hexChars, 0);
+        return new String(hexChars);
+    }
 
+    /**
+     * Writes hex representation of bytes into caller supplied array.
+     * @param bytes source bytes
+     * @param offset offset of the first byte
+     * @param len number of bytes
+     * @param out destination array, needs 2 * len chars
+     * @param outOffset offset in destination array
+     * @return offset in destination array behind the written chars
+     */
+    public static int toHex(byte[] bytes, int offset, int len, char[] out, int outOffset) {
         for (int i = offset; i < offset + len; i++) {
-            result.append(String.format("%02X", bytes[i]));
+            int v = bytes[i] & 0xFF;
+            out[outOffset++] = HEX_CHARS[v >>> 4];
+            out[outOffset++] = HEX_CHARS[v & 0x0F];
         }
+        return outOffset;
+    }
 
-        return result.toString();
+    public static StringBuilder appendHex(StringBuilder sb, byte[] bytes, int offset, int len) {
+        sb.ensureCapacity(sb.length() + len * 2);
+        for (int i = offset; i < offset + len; i++) {
+            int v = bytes[i] & 0xFF;
+            sb.append(HEX_CHARS[v >>> 4]).append(HEX_CHARS[v & 0x0F]);
+        }
+        return sb;
     }
 
-    public static String bytesToHex(byte[] bytes) {
-        char[] hexArray = "0123456789ABCDEF".toCharArray();
-        char[] hexChars = new char[bytes.length * 2];
-        for (int j = 0; j < bytes.length; j++) {
-            int v = bytes[j] & 0xFF;
-            hexChars[j * 2] = hexArray[v >>> 4];
-            hexChars[j * 2 + 1] = hexArray[v & 0x0F];
+    public static <T extends Appendable> T appendHex(T out, byte[] bytes, int offset, int len) throws IOException {
+        for (int i = offset; i < offset + len; i++) {
+            int v = bytes[i] & 0xFF;
+            out.append(HEX_CHARS[v >>> 4]).append(HEX_CHARS[v & 0x0F]);
         }
-        return new String(hexChars);
+        return out;
+    }
+
+    public static <T extends Appendable> T appendHex(T out, int b) throws IOException {
+        out.append(HEX_CHARS[(b >>> 4) & 0x0F]).append(HEX_CHARS[b & 0x0F]);
+        return out;
+    }
+
+    public static String bytesToHex(byte[] bytes) {
+        return toHex(bytes);
     }
     
     public static byte[] hexStringToByteArray(String s) {
-        String sanitized = s.replace(" ", "");
-        byte[] b = new byte[sanitized.length() / 2];
-        for (int i = 0; i < b.length; i++) {
-            int index = i * 2;
-            int v = Integer.parseInt(sanitized.substring(index, index + 2), 16);
-            b[i] = (byte) v;
+        int digits = 0;
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) != ' ') {
+                digits++;
+            }
         }
+        byte[] b = new byte[digits / 2];
+        hexStringToByteArray(s, b, 0);
         return b;
-    }    
+    }
+
+    /**
+     * Decodes hex string into caller supplied array. Spaces are skipped,
+     * trailing odd digit is ignored.
+     * @param s hex string
+     * @param out destination array
+     * @param outOffset offset in destination array
+     * @return number of decoded bytes
+     */
+    public static int hexStringToByteArray(CharSequence s, byte[] out, int outOffset) {
+        int start = outOffset;
+        int high = -1;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == ' ') {
+                continue;
+            }
+            int v = c < HEX_VALUES.length ? HEX_VALUES[c] : -1;
+            if (v < 0) {
+                throw new NumberFormatException("Not a hex digit: '" + c + "'");
+            }
+            if (high < 0) {
+                high = v;
+            } else {
+                out[outOffset++] = (byte) ((high << 4) | v);
+                high = -1;
+            }
+        }
+        return outOffset - start;
+    }
     
     
     // Utils 
@@ -0,0 +1,217 @@
+package controlservice;
+
+import cardTools.Util;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Registry of ATRs telling the role of inserted card.
+ *
+ * Every line of the configuration file is | role | pattern | mask |, where
+ * role is replay or target, pattern is ATR in hex and mask is optional hex
+ * string of the same length selecting compared bits. Pattern ending with *
+ * matches every ATR starting with it. Text after # is a comment. The first
+ * matching line of the file gives the role, ATR listed with two different
+ * roles is refused.
+ *
+ * Complete ATRs are looked up by hash of their bytes, patterns with mask or
+ * prefix are compared byte by byte in the order of the file. Only patterns
+ * written before a matching complete ATR are compared.
+ */
+public class AtrRegistry {
+
+    public enum Role {
+        REPLAY, TARGET, UNKNOWN
+    }
+
+    public final static String DEFAULT_FILE = "atr.conf";
+
+    private final Map<ByteBuffer, Pattern> exact = new HashMap<>();
+    private final List<Pattern> patterns = new ArrayList<>();
+    // Number of added patterns and complete ATRs, gives order of the file
+    private int count = 0;
+
+    private static class Pattern {
+        final byte[] value;
+        final byte[] mask;
+        final boolean prefix;
+        final Role role;
+        final int order;
+
+        Pattern(byte[] value, byte[] mask, boolean prefix, Role role, int order) {
+            this.value = value;
+            this.mask = mask;
+            this.prefix = prefix;
+            this.role = role;
+            this.order = order;
+        }
+
+        boolean sameAs(byte[] value, byte[] mask, boolean prefix) {
+            return this.prefix == prefix && java.util.Arrays.equals(this.value, value)
+                    && java.util.Arrays.equals(this.mask, mask);
+        }
+
+        boolean matches(byte[] atr) {
+            if (prefix ? atr.length < value.length : atr.length != value.length) {
+                return false;
+            }
+            for (int i = 0; i < value.length; i++) {
+                if (((atr[i] ^ value[i]) & mask[i]) != 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Method adding ATR pattern.
+     *
+     * @param role role of matching cards
+     * @param value ATR or its beginning
+     * @param mask bits of value to compare, null to compare whole bytes
+     * @param prefix true if longer ATRs starting with value match too
+     * @throws IllegalArgumentException if the same pattern was added with another role
+     */
+    public void add(Role role, byte[] value, byte[] mask, boolean prefix) {
+        if (mask != null && mask.length != value.length) {
+            throw new IllegalArgumentException("Mask length differs from ATR length");
+        }
+        if (mask == null && !prefix) {
+            Pattern known = exact.get(ByteBuffer.wrap(value));
+            if (known == null) {
+                byte[] atr = value.clone();
+                exact.put(ByteBuffer.wrap(atr), new Pattern(atr, null, false, role, count++));
+            } else if (known.role != role) {
+                throw new IllegalArgumentException("ATR " + Util.toHex(value) + " already listed as " + known.role);
+            }
+            return;
+        }
+        if (mask == null) {
+            mask = new byte[value.length];
+            java.util.Arrays.fill(mask, (byte) 0xff);
+        }
+        for (Pattern p : patterns) {
+            if (p.sameAs(value, mask, prefix)) {
+                if (p.role != role) {
+                    throw new IllegalArgumentException("ATR " + Util.toHex(value) + " already listed as " + p.role);
+                }
+                return;
+            }
+        }
+        patterns.add(new Pattern(value.clone(), mask.clone(), prefix, role, count++));
+    }
+
+    /**
+     * Method adding complete ATRs given as hex strings, empty strings are skipped.
+     *
+     * @param role role of matching cards
+     * @param atrs ATRs in hex
+     */
+    public void add(Role role, String... atrs) {
+        for (String atr : atrs) {
+            if (!atr.isEmpty()) {
+                add(role, Util.hexStringToByteArray(atr), null, false);
+            }
+        }
+    }
+
+    /**
+     * Method finding role of card.
+     *
+     * @param atr ATR of card
+     * @return role of the first matching pattern, UNKNOWN if none matches
+     */
+    public Role classify(byte[] atr) {
+        Pattern known = exact.get(ByteBuffer.wrap(atr));
+        for (Pattern p : patterns) {
+            if (known != null && p.order > known.order) {
+                break;
+            }
+            if (p.matches(atr)) {
+                return p.role;
+            }
+        }
+        return known != null ? known.role : Role.UNKNOWN;
+    }
+
+    public int size() {
+        return exact.size() + patterns.size();
+    }
+
+    /**
+     * Method loading registry from configuration file.
+     *
+     * @param fileName path to the file
+     * @return registry
+     */
+    public static AtrRegistry load(String fileName) throws IOException {
+        try (Reader in = new InputStreamReader(new FileInputStream(fileName), StandardCharsets.UTF_8)) {
+            return load(in, fileName);
+        }
+    }
+
+    /**
+     * Method loading registry from configuration.
+     *
+     * @param in configuration
+     * @param name name used in error messages
+     * @return registry
+     */
+    public static AtrRegistry load(Reader in, String name) throws IOException {
+        AtrRegistry registry = new AtrRegistry();
+        BufferedReader reader = new BufferedReader(in);
+        String line;
+        int lineNum = 0;
+        while ((line = reader.readLine()) != null) {
+            lineNum++;
+            int comment = line.indexOf('#');
+            if (comment >= 0) {
+                line = line.substring(0, comment);
+            }
+            line = line.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            String[] fields = line.split("\\s+");
+            try {
+                if (fields.length < 2 || fields.length > 3) {
+                    throw new IllegalArgumentException("Expected role, ATR and optional mask");
+                }
+                Role role = Role.UNKNOWN;
+                for (Role r : Role.values()) {
+                    if (r.name().equalsIgnoreCase(fields[0])) {
+                        role = r;
+                    }
+                }
+                if (role == Role.UNKNOWN) {
+                    throw new IllegalArgumentException("Unknown role " + fields[0]);
+                }
+                String pattern = fields[1];
+                boolean prefix = pattern.endsWith("*");
+                if (prefix) {
+                    pattern = pattern.substring(0, pattern.length() - 1);
+                }
+                if (pattern.length() % 2 != 0) {
+                    throw new IllegalArgumentException("Odd number of hex digits");
+                }
+                byte[] mask = fields.length == 3 ? Util.hexStringToByteArray(fields[2]) : null;
+                registry.add(role, Util.hexStringToByteArray(pattern), mask, prefix);
+            } catch (IllegalArgumentException e) {
+                // NumberFormatException of invalid hex digit included
+                throw new IOException(name + ":" + lineNum + ": " + e.getMessage(), e);
+            }
+        }
+        return registry;
+    }
+}
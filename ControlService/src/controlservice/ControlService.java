@@ -1,6 +1,7 @@
 package controlservice;
 
 import cardTools.CardManager;
+import cardTools.LatencyStats;
 import cardTools.Util;
 
 import javax.smartcardio.*;
@@ -16,20 +17,17 @@ public class ControlService {
     final static byte INS_SEND_LOG_LEN = (byte) 0x50;
     final static byte INS_SEND_LOG = (byte) 0x51;
     final static byte INS_MODIFY_LOG = (byte) 0x52;
+    final static byte INS_SEND_LOG_USED = (byte) 0x53;
+    final static byte INS_CLEAR_LOG = (byte) 0x54;
     
-    final static byte APDU_T = (byte) 0x00;
-    final static byte RSPS_T = (byte) 0x01;
-    
-    final static short LOG_OFFSET_ITER = (short) 0x00;
-    final static short LOG_OFFSET_TYPE = (short) 0x01;
-    final static short LOG_OFFSET_LEN = (short) 0x02;
-    final static short LOG_OFFSET_DATA = (short) 0x04;
-    
-    final static short APDU_HEAD_LEN = (short) 0x05;
     final static short APDU_DATA_MAX_LEN = (short) 0xff;
+    // Unchanged bytes between two changed ones, which are still sent in one APDU
+    final static short WRITE_MERGE_GAP = (short) 0x08;
+    // Automation stops when no replay card is inserted for this long
+    final static long AUTOMATE_IDLE_TIMEOUT = 20000;
 
     
-    // section with atrs
+    // section with atrs, used when there is no ATR configuration file
 
     private static String REPLAY_CARD_ATR1 = "";
     private static String REPLAY_CARD_ATR2 = "";
@@ -38,29 +36,99 @@ public class ControlService {
 
     private static String REPLAY_CARD_ATR_ARR[] = { REPLAY_CARD_ATR1, REPLAY_CARD_ATR2 };
     private static String TARGET_CARD_ATR_ARR[] = { TARGET_CARD_ATR1, TARGET_CARD_ATR2 };
+    
+    // Roles of cards by ATR, loaded by option -c or from atr.conf
+    static AtrRegistry atrRegistry = null;
+    // Connections to cards in physical readers, kept between cycles
+    private ReaderPool readerPool = null;
   
     private byte[] log = null;
+    // Copy of the log as stored on replay card, null when not known
+    private byte[] replayLog = null;
+    // Maximal data length of one APDU transferring the log, Extended APDUs when above 0xff
+    private short transferLen = APDU_DATA_MAX_LEN;
+    // Receives Response APDUs of log transfers, reused by all of them
+    private java.nio.ByteBuffer transferResponse = null;
+    // Record layout used by LogApplet on replay card
+    private LogFormat logFormat = LogFormat.LEGACY;
+    // Walks the log and archived sessions
+    private final LogCursor cursor = new LogCursor();
+    // Command APDU of the log sent to target card, reused by all cycles
+    private byte[] targetCommand = null;
+    // Output of printLog, chosen by option -f
+    private LogPrinter logPrinter = new LogPrinter(LogPrinter.Style.TEXT);
+    // Response records are written to replay card during communication, set by option -s
+    private boolean streamResponses = false;
+    // Archive of synchronized logs, path set by option -d, logs are archived only when it is given
+    private String archiveFile = SessionArchive.DEFAULT_FILE;
+    private boolean archiving = false;
+    private SessionArchive archive = null;
+    // Responses of target card reused without the card, whitelist set by option -k
+    private ResponseCache responseCache = null;
+    // APDU latencies of both cards over the whole run, shared by sessions
+    private final LatencyStats replayLatency;
+    private final LatencyStats targetLatency;
+    
+    public ControlService() {
+        replayLatency = new LatencyStats();
+        targetLatency = new LatencyStats();
+    }
+    
+    /**
+     * Constructor of session with its own log, which shares output and
+     * latency statistics with the given instance.
+     *
+     * @param parent instance holding the shared settings
+     */
+    ControlService(ControlService parent) {
+        logPrinter = parent.logPrinter;
+        streamResponses = parent.streamResponses;
+        archive = parent.archive;
+        responseCache = parent.responseCache;
+        replayLatency = parent.replayLatency;
+        targetLatency = parent.targetLatency;
+    }
     
     
     /**
      * @param args the command line arguments
      */
     public static void main(String[] args) {
+        ControlService main = new ControlService();
         try {
-            ControlService main = new ControlService();
+            args = main.parseOptions(args);
+            
+            if (args.length > 0 && args[0].equals("-l")) {
+                main.listArchive();
+                return;
+            }
+            
+            if (args.length > 0 && args[0].equals("-e")) {
+                main.replayArchive();
+                return;
+            }
+            main.openArchive();
+            
+            if (args.length > 0 && args[0].equals("-m")) {
+                new SessionScheduler(main).run();
+                return;
+            }
             
             if (args.length > 0 && args[0].equals("-a")) {
                 main.automate();
             }
             
-            final CardManager cardMngrReplay = main.ConnectPhysicalCard(REPLAY_CARD_ATR_ARR, false);
+            final CardManager cardMngrReplay = main.ConnectPhysicalCard(AtrRegistry.Role.REPLAY, false);
+            cardMngrReplay.setLatencyStats(main.replayLatency);
             
             main.getCardSize(cardMngrReplay);
             
             if (args.length > 0 && args[0].equals("-r")) {
+                // Log is archived before it is erased
+                main.readOutReplay(cardMngrReplay);
+                main.archiveLog(cardMngrReplay, null);
                 System.out.println("RESETING LOG");
-                main.ResetLog();
-                main.writeInReplay(cardMngrReplay);
+                main.clearReplay(cardMngrReplay);
             }
             
             if (args.length > 0 && args[0].equals("-w")) {
@@ -70,191 +138,693 @@ public class ControlService {
             main.readOutReplay(cardMngrReplay);
             main.printLog();
             
-            final CardManager cardMngrTarget = main.ConnectPhysicalCard(TARGET_CARD_ATR_ARR, false);
+            final CardManager cardMngrTarget = main.ConnectPhysicalCard(AtrRegistry.Role.TARGET, false);
+            cardMngrTarget.setLatencyStats(main.targetLatency);
             
-            main.communicateTarget(cardMngrTarget);
+            main.communicateTarget(cardMngrTarget, cardMngrReplay);
             main.printLog();
             
             main.writeInReplay(cardMngrReplay);
+            main.archiveLog(cardMngrReplay, cardMngrTarget);
             
-            cardMngrReplay.Disconnect(true);
-            cardMngrTarget.Disconnect(true);
+            main.readerPool.close(true);
             
         } catch (Exception ex) {
             System.out.println("Exception : " + ex);
             System.out.println(ex.getCause());
+        } finally {
+            main.printLatency();
+            main.closeArchive();
+        }
+    }
+    
+    /**
+     * Method processing option -f text|csv|json selecting output of the log,
+     * option -s streaming responses to replay card, option -c file with ATRs,
+     * option -d archive of logs and option -k CLA and INS pairs whose target
+     * card responses are cached.
+     *
+     * @param args the command line arguments
+     * @return the command line arguments without the options
+     */
+    private String[] parseOptions(String[] args) throws java.io.IOException {
+        java.util.List<String> rest = new java.util.ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-f") && i + 1 < args.length) {
+                logPrinter = LogPrinter.forName(args[++i]);
+            } else if (args[i].equals("-s")) {
+                streamResponses = true;
+            } else if (args[i].equals("-d") && i + 1 < args.length) {
+                archiveFile = args[++i];
+                archiving = true;
+            } else if (args[i].equals("-c") && i + 1 < args.length) {
+                atrRegistry = AtrRegistry.load(args[++i]);
+            } else if (args[i].equals("-k") && i + 1 < args.length) {
+                responseCache = ResponseCache.parse(args[++i]);
+            } else {
+                rest.add(args[i]);
+            }
         }
+        if (atrRegistry == null) {
+            atrRegistry = loadDefaultRegistry();
+        }
+        return rest.toArray(new String[rest.size()]);
     }
     
+    /**
+     * Method writing log given by option -w to replay card. The log is hex
+     * of records in legacy layout | iter | type | length | data |, as printed
+     * by TEXT output without its heading, '|' and white space are ignored.
+     * Records are stored in the record format of the replay card, the rest
+     * of the log is erased.
+     *
+     * @param cardMngr replay card
+     * @param str records in hex
+     */
     public void writeInLog(CardManager cardMngr, String str) throws Exception {
         System.out.println(str);
-        byte[] str_byte = Util.hexStringToByteArray(str);
-        java.lang.System.arraycopy(str_byte, 0, log, 0, str_byte.length);
+        byte[] legacy = Util.hexStringToByteArray(str.replaceAll("[|\\s]", ""));
+        ResetLog();
+        byte[] header = new byte[LogFormat.APDU_HEAD_LEN];
+        int offset = 0;
+        LogCursor records = cursor.reset(legacy, LogFormat.LEGACY);
+        while (records.next()) {
+            byte[] data = records.getData();
+            // Compact command record takes at most one byte more than its Command APDU
+            int maxLen = logFormat.getRecordLen(data.length + (logFormat.isCompact() && records.isCommand() ? 1 : 0));
+            if (offset + maxLen > log.length) {
+                throw new Exception("Log given by -w does not fit into the log of " + log.length + " bytes");
+            }
+            if (records.isCommand() && data.length < LogFormat.APDU_HEAD_LEN) {
+                throw new Exception("Command record of iteration " + records.getIter() + " given by -w has no header");
+            } else if (records.isCommand()) {
+                offset = logFormat.putCommand(log, offset, records.getIter(), data, header);
+            } else if (records.getSW() >= 0) {
+                offset = logFormat.putResponse(log, offset, records.getIter(),
+                        java.util.Arrays.copyOf(data, records.getBodyLen()), records.getSW());
+            } else {
+                throw new Exception("Response record of iteration " + records.getIter() + " given by -w has no SW");
+            }
+        }
+        if (records.getNextOffset() != legacy.length) {
+            throw new Exception("Malformed record at offset " + records.getNextOffset() + " of log given by -w");
+        }
         writeInReplay(cardMngr);
     }
     
     public void readOutReplay(CardManager cardMngr) throws Exception {
         System.out.println("READOUT");
-                 
-        byte[] offset = {0, 0};
-        ResponseAPDU response = cardMngr.transmit(new CommandAPDU(CLA_LOGAPPLET, INS_SEND_LOG, offset[0], offset[1]));
-        while (response.getSW() == 0x9000) {
-            short offset_s = Util.getShort(offset, (short) 0);
-            byte[] logData = response.getData();
-            java.lang.System.arraycopy(logData, 0, log, offset_s, logData.length); // copy logData
-            setShort(offset, (short) 0, (short) (offset_s + logData.length)); // set new offset
-            response = cardMngr.transmit(new CommandAPDU(CLA_LOGAPPLET, INS_SEND_LOG, offset[0], offset[1]));
+        // Used length and all chunks are read in one transaction, nobody else changes the log meanwhile
+        cardMngr.beginExclusive();
+        try {
+            short usedLen = getLogUsedLen(cardMngr);
+            byte[] offset = {0, 0};
+            short offset_s = (short) 0;
+            while (usedLen > (offset_s = Util.getShort(offset, (short) 0))) {
+                int chunkLen = Math.min(transferLen, usedLen - offset_s);
+                int responseLen = transmitTransfer(cardMngr, INS_SEND_LOG, offset_s, null, 0, chunkLen);
+                if (responseLen < 0) {
+                    continue; // repeat with short APDU
+                }
+                if (getTransferSW(responseLen) != 0x9000 || responseLen == 2) {
+                    throw new Exception("Log readout failed at offset " + offset_s);
+                }
+                // Bytes behind the used part stay zero as allocated in getCardSize
+                short dataLen = (short) Math.min(responseLen - 2, usedLen - offset_s);
+                java.lang.System.arraycopy(transferResponse.array(), 0, log, offset_s, dataLen); // copy logData
+                setShort(offset, (short) 0, (short) (offset_s + dataLen)); // set new offset
+            }
+        } finally {
+            endExclusive(cardMngr);
+        }
+        replayLog = log.clone();
+    }
+    
+    /**
+     * Method ending exclusive access started by readout or write-in. Failure
+     * to release the card is only reported, so it cannot hide the exception
+     * which ended the transfer.
+     *
+     * @param cardMngr card in exclusive access
+     */
+    private static void endExclusive(CardManager cardMngr) {
+        try {
+            cardMngr.endExclusive();
+        } catch (CardException | IllegalStateException e) {
+            System.out.println("Ending exclusive access failed: " + e);
+        }
+    }
+    
+    private short getLogUsedLen(CardManager cardMngr) throws Exception {
+        ResponseAPDU response = cardMngr.transmit(new CommandAPDU(CLA_LOGAPPLET, INS_SEND_LOG_USED, 0x00, 0x00));
+        if (response.getSW() != 0x9000) {
+            // Applet without used length support, whole log has to be read out
+            return (short) log.length;
         }
+        return Util.getShort(response.getData(), (short) 0);
     }
     
     public void writeInReplay(CardManager cardMngr) throws Exception {
         System.out.println("WRITEIN");
-                
-        byte[] offset = {0, 0};
-        short offset_s = (short) 0;
-        while (log.length > (offset_s = Util.getShort(offset, (short) 0))) {
-            short dataLen = (short) (log.length - offset_s) < (short) 255
-                ? (short) (log.length - offset_s)
-                : (short) 255;
-            byte[] data = new byte[dataLen];
-            java.lang.System.arraycopy(log, offset_s, data, 0, dataLen);
-            ResponseAPDU response = cardMngr.transmit(new CommandAPDU(CLA_LOGAPPLET, INS_MODIFY_LOG, offset[0], offset[1], data));
-            if (response.getSW() != 0x9000) {
-                throw new Exception();
+        // Chunks are written in one transaction, other applications cannot access the card meanwhile
+        cardMngr.beginExclusive();
+        try {
+            byte[] offset = {0, 0};
+            short offset_s = (short) 0;
+            while (log.length > (offset_s = nextDirtyOffset(Util.getShort(offset, (short) 0)))) {
+                short dataLen = getDirtyLen(offset_s);
+                setShort(offset, (short) 0, offset_s);
+                int responseLen = transmitTransfer(cardMngr, INS_MODIFY_LOG, offset_s, log, offset_s, dataLen);
+                if (responseLen < 0) {
+                    continue; // repeat with short APDU
+                }
+                if (getTransferSW(responseLen) != 0x9000) {
+                    throw new Exception();
+                }
+                setShort(offset, (short) 0, (short) (offset_s + dataLen));
+            }
+        } finally {
+            endExclusive(cardMngr);
+        }
+        replayLog = log.clone();
+    }
+    
+    /**
+     * Method sending APDU transferring the log. Command APDU is built from
+     * the slice of the log and the Response APDU is received into reused
+     * transferResponse, no objects are created per APDU. When Extended APDU
+     * is refused by reader or card, all following transfers use short APDUs.
+     *
+     * @param cardMngr replay card
+     * @param ins INS_SEND_LOG or INS_MODIFY_LOG
+     * @param offset offset of the part of the log
+     * @param data array with the part of the log to write, null for readout
+     * @param dataOffset offset of the part in data
+     * @param len length of the part
+     * @return length of Response APDU in transferResponse or -1 if the transfer has to be repeated with short APDU
+     */
+    private int transmitTransfer(CardManager cardMngr, byte ins, int offset, byte[] data, int dataOffset, int len)
+            throws Exception {
+        int responseMaxLen = Math.max(CardManager.RESPONSE_MIN_SPACE, transferLen + 2);
+        if (transferResponse == null || transferResponse.capacity() < responseMaxLen) {
+            transferResponse = java.nio.ByteBuffer.allocate(responseMaxLen);
+        }
+        transferResponse.clear();
+        int responseLen = -1;
+        try {
+            if (data == null) {
+                responseLen = cardMngr.transmit(CLA_LOGAPPLET, ins, offset >> 8, offset & 0xff, null, 0, 0, len, transferResponse);
+            } else {
+                responseLen = cardMngr.transmit(CLA_LOGAPPLET, ins, offset >> 8, offset & 0xff, data, dataOffset, len, 0, transferResponse);
+            }
+        } catch (CardException e) {
+            if (transferLen <= APDU_DATA_MAX_LEN) {
+                throw e;
+            }
+        }
+        if (transferLen > APDU_DATA_MAX_LEN && (responseLen < 0 || getTransferSW(responseLen) != 0x9000)) {
+            System.out.println("Extended APDU failed, falling back to short APDUs.");
+            transferLen = APDU_DATA_MAX_LEN;
+            return -1;
+        }
+        return responseLen;
+    }
+    
+    private int getTransferSW(int responseLen) {
+        return Util.getShort(transferResponse.array(), responseLen - 2) & 0xffff;
+    }
+    
+    /**
+     * Method erasing the log on replay card and in ControlService.
+     *
+     * @param cardMngr replay card
+     */
+    public void clearReplay(CardManager cardMngr) throws Exception {
+        ResetLog();
+        ResponseAPDU response = cardMngr.transmit(new CommandAPDU(CLA_LOGAPPLET, INS_CLEAR_LOG, 0x00, 0x00));
+        if (response.getSW() != 0x9000) {
+            // Applet without clear support, log has to be overwritten by zeros
+            replayLog = null;
+            writeInReplay(cardMngr);
+            return;
+        }
+        replayLog = log.clone();
+    }
+    
+    /**
+     * Method finding the first byte of log, which differs from log on replay card.
+     *
+     * @param from offset where the search starts
+     * @return offset of changed byte or log length if there is none
+     */
+    private short nextDirtyOffset(short from) {
+        short offset = from;
+        while (offset < log.length && !isDirty(offset)) {
+            offset++;
+        }
+        return offset;
+    }
+    
+    /**
+     * Method measuring changed range of log, which fits into one APDU.
+     * Short runs of unchanged bytes are included to save APDUs.
+     *
+     * @param from offset of the first changed byte
+     * @return length of the range ending with changed byte
+     */
+    private short getDirtyLen(short from) {
+        int end = Math.min(log.length, from + transferLen);
+        int lastDirty = from;
+        for (int i = from + 1; i < end && i - lastDirty <= WRITE_MERGE_GAP; i++) {
+            if (isDirty(i)) {
+                lastDirty = i;
             }
-            setShort(offset, (short) 0, (short) (offset_s + dataLen));
         }
+        return (short) (lastDirty - from + 1);
+    }
+    
+    private boolean isDirty(int offset) {
+        return replayLog == null || replayLog[offset] != log[offset];
     }
     
     public void communicateTarget(CardManager cardMngr) throws Exception {
+        communicateTarget(cardMngr, null);
+    }
+    
+    /**
+     * Method communicating with target card. In streaming mode every changed
+     * response record is written to replay card by background writer while
+     * the next command is processed by target card. Writer keeps exclusive
+     * access to replay card for the whole communication and records stored
+     * bytes in its own copy of the log, which replaces replayLog only after
+     * the writer ends. Whole log is written back by writeInReplay afterwards
+     * if streaming fails.
+     *
+     * @param cardMngr target card
+     * @param cardMngrReplay replay card, null when responses are not streamed
+     */
+    public void communicateTarget(CardManager cardMngr, CardManager cardMngrReplay) throws Exception {
         // works only if error sw1 and sw2 does not have any data
-        System.out.println("COMMUNICATE");
-               
-        byte iter = 0;
-        short offset = 0;
-        short dataLen = 0;
-        while (0 != (dataLen = Util.getShort(log, (short) (offset + LOG_OFFSET_LEN)))
-               || offset >= log.length) {
-            byte[] data = new byte[dataLen];
-            java.lang.System.arraycopy(log, offset + LOG_OFFSET_DATA, data, 0, dataLen);
-            
-            ResponseAPDU response = cardMngr.transmit(new CommandAPDU(data));
-            byte[] rspsData = response.getData();
-            
-            offset = (short) ((short) (offset + LOG_OFFSET_DATA) + dataLen);
-            log[offset] = iter;
-            log[offset + LOG_OFFSET_TYPE] = RSPS_T;
-            
-            if (rspsData.length != 0) {
-                java.lang.System.arraycopy(rspsData, 0, log, offset + LOG_OFFSET_DATA, rspsData.length);
+        // Both cards must be in different readers to process APDUs at once
+        boolean streaming = streamResponses && cardMngrReplay != null && replayLog != null
+                && cardMngr.getTerminal() != null && !cardMngr.getTerminal().equals(cardMngrReplay.getTerminal());
+        System.out.println(streaming ? "COMMUNICATE (STREAMING)" : "COMMUNICATE");
+        
+        java.util.concurrent.ExecutorService writer = streaming
+                ? java.util.concurrent.Executors.newSingleThreadExecutor() : null;
+        java.util.List<java.util.concurrent.Future<?>> writes = new java.util.ArrayList<>();
+        // Bytes handed to the writer are tracked by this thread, bytes stored on the card by the writer
+        final byte[] submitted = streaming ? replayLog.clone() : null;
+        final byte[] stored = streaming ? replayLog.clone() : null;
+        // Exclusive access belongs to the writer thread, only the writer touches this flag
+        final boolean[] exclusive = {false};
+        if (streaming) {
+            writes.add(writer.submit(() -> {
+                cardMngrReplay.beginExclusive();
+                exclusive[0] = true;
+                return null;
+            }));
+        }
+        try {
+            int iter = 0;
+            if (targetCommand == null || targetCommand.length < log.length + LogFormat.APDU_HEAD_LEN) {
+                targetCommand = new byte[log.length + LogFormat.APDU_HEAD_LEN];
+            }
+            byte[] command = targetCommand;
+            java.nio.ByteBuffer commandBuffer = java.nio.ByteBuffer.wrap(command);
+            java.nio.ByteBuffer responseBuffer = java.nio.ByteBuffer.wrap(log);
+            byte[] targetAtr = responseCache != null ? getATR(cardMngr) : null;
+            LogCursor records = cursor.reset(log, logFormat);
+            // Response written behind every command is walked over as the next record
+            while (records.next()) {
+                if (!records.isCommand()) {
+                    continue;
+                }
+                int commandLen = records.copyTo(command, 0);
+                commandBuffer.clear();
+                commandBuffer.limit(commandLen);
+                
+                // Response is received straight into the log, behind the shortest record head
+                int recordOffset = records.getNextOffset();
+                int responseOffset = Math.min(recordOffset + logFormat.getRecordLen(0), log.length);
+                boolean cacheable = responseCache != null && responseCache.isCacheable(command, commandLen);
+                int responseLen = cacheable
+                        ? responseCache.get(targetAtr, command, commandLen, log, responseOffset, log.length) : -1;
+                if (responseLen < 0) {
+                    responseBuffer.clear();
+                    responseBuffer.position(responseOffset);
+                    try {
+                        responseLen = cardMngr.transmit(commandBuffer, responseBuffer);
+                    } catch (java.nio.BufferOverflowException e) {
+                        responseLen = -1;
+                    }
+                    if (cacheable && responseLen >= 0) {
+                        responseCache.put(targetAtr, command, commandLen, log, responseOffset, responseLen);
+                    }
+                }
+                if (responseLen < 0 || recordOffset + logFormat.getRecordLen(responseLen) > log.length) {
+                    throw new Exception("Log is full, response of iteration " + iter + " does not fit");
+                }
+                int offset = logFormat.completeResponse(log, recordOffset, iter, responseLen);
+                iter++;
+                
+                if (streaming) {
+                    streamRange(writer, writes, cardMngrReplay, submitted, stored, recordOffset, offset);
+                }
+            }
+        } finally {
+            if (streaming) {
+                writer.submit(() -> {
+                    if (exclusive[0]) {
+                        endExclusive(cardMngrReplay);
+                    }
+                });
+                writer.shutdown();
+                writer.awaitTermination(Long.MAX_VALUE, java.util.concurrent.TimeUnit.MILLISECONDS);
+            }
+        }
+        if (!streaming) {
+            return;
+        }
+        replayLog = stored;
+        for (java.util.concurrent.Future<?> write : writes) {
+            try {
+                write.get();
+            } catch (java.util.concurrent.ExecutionException e) {
+                System.out.println("Streaming to replay card failed, whole log will be written: " + e.getCause());
+                replayLog = null;
+                break;
             }
-            
-            setShort(log, (short) (offset + LOG_OFFSET_LEN), (short) ((short) rspsData.length + (short) 2));
-            setShort(log, (short) (offset + LOG_OFFSET_DATA + rspsData.length), (short) response.getSW());
-            offset = (short) ((short) (offset + LOG_OFFSET_DATA) + (short) ((short) rspsData.length + (short) 2));
-            iter++;
         }
     }
     
+    /**
+     * Method handing bytes of the log range, which differ from the bytes
+     * already handed over, to background writer. Writer gets its own copy,
+     * the log is modified further meanwhile.
+     *
+     * @param writer background writer
+     * @param writes list of submitted writes
+     * @param cardMngrReplay replay card
+     * @param submitted log as it will be on replay card after submitted writes
+     * @param stored log as stored on replay card, written by the writer only
+     * @param from start of the range
+     * @param to end of the range
+     */
+    private void streamRange(java.util.concurrent.ExecutorService writer, java.util.List<java.util.concurrent.Future<?>> writes,
+            CardManager cardMngrReplay, byte[] submitted, byte[] stored, int from, int to) {
+        while (from < to && submitted[from] == log[from]) {
+            from++;
+        }
+        while (to > from && submitted[to - 1] == log[to - 1]) {
+            to--;
+        }
+        if (from == to) {
+            return;
+        }
+        final int writeOffset = from;
+        final byte[] data = java.util.Arrays.copyOfRange(log, from, to);
+        java.lang.System.arraycopy(data, 0, submitted, from, data.length);
+        writes.add(writer.submit(() -> {
+            writeLogRange(cardMngrReplay, data, writeOffset, stored);
+            return null;
+        }));
+    }
+    
+    /**
+     * Method writing part of the log to replay card and marking it as stored.
+     *
+     * @param cardMngr replay card
+     * @param data bytes of the log
+     * @param offset offset of data in the log
+     * @param stored log as stored on replay card
+     */
+    private void writeLogRange(CardManager cardMngr, byte[] data, int offset, byte[] stored) throws Exception {
+        int done = 0;
+        while (done < data.length) {
+            int chunkLen = Math.min(transferLen, data.length - done);
+            int chunkOffset = offset + done;
+            int responseLen = transmitTransfer(cardMngr, INS_MODIFY_LOG, chunkOffset, data, done, chunkLen);
+            if (responseLen < 0) {
+                continue; // repeat with short APDU
+            }
+            if (getTransferSW(responseLen) != 0x9000) {
+                throw new Exception("Log write failed at offset " + chunkOffset);
+            }
+            done += chunkLen;
+        }
+        java.lang.System.arraycopy(data, 0, stored, offset, data.length);
+    }
+    
+    /**
+     * Method repeating the whole cycle for every inserted replay card.
+     * Cycle starts on card insertion and the next one waits for removal
+     * of the replay card, no fixed delays are involved.
+     */
     private void automate() throws Exception {
-        byte iter = 0;
-        while (iter < 4) {
+        CardTerminals terminals = TerminalFactory.getDefault().terminals();
+        // First call starts tracking of insertions and removals
+        terminals.waitForChange(1);
+        while (true) {
             CardManager cardMngrReplay;
             try {
-                cardMngrReplay = ConnectPhysicalCard(REPLAY_CARD_ATR_ARR, false);
+                cardMngrReplay = ConnectPhysicalCard(AtrRegistry.Role.REPLAY, false);
+                cardMngrReplay.setLatencyStats(replayLatency);
             } catch (Exception e) {
-                iter++;
-                System.out.println("Connection will be repeated in 5 seconds, insert replay card.");
-                Thread.sleep(5000);
+                System.out.println("Waiting for replay card.");
+                if (!terminals.waitForChange(AUTOMATE_IDLE_TIMEOUT)) {
+                    System.out.println("No replay card inserted, automation finished.");
+                    return;
+                }
                 continue;
             }
-            iter = 0;
             
             getCardSize(cardMngrReplay);
             readOutReplay(cardMngrReplay);
             
-            final CardManager cardMngrTarget = ConnectPhysicalCard(TARGET_CARD_ATR_ARR, false);
+            final CardManager cardMngrTarget = ConnectPhysicalCard(AtrRegistry.Role.TARGET, false);
+            cardMngrTarget.setLatencyStats(targetLatency);
             
-            communicateTarget(cardMngrTarget);
+            communicateTarget(cardMngrTarget, cardMngrReplay);
             printLog();
             writeInReplay(cardMngrReplay);
+            archiveLog(cardMngrReplay, cardMngrTarget);
             
-            cardMngrReplay.Disconnect(true);
-            cardMngrTarget.Disconnect(true);
-            System.out.println("Sleeping 5 seconds, remove replay card.");
-            Thread.sleep(5000);
+            // Cards are reset, target card is reconnected in its reader without enumeration
+            readerPool.release(cardMngrReplay, true);
+            readerPool.release(cardMngrTarget, true);
+            System.out.println("Remove replay card.");
+            cardMngrReplay.getTerminal().waitForCardAbsent(0);
         }
     }
     
-    public void printLog() {
-        System.out.println("LOG:");
-        short ptr = 0;
-        while (true) {
-            if (ptr >= log.length) {
-                break;
+    /**
+     * Method opening archive of logs given by option -d. ControlService works
+     * without archive if the option is missing or the archive cannot be opened.
+     */
+    private void openArchive() {
+        if (!archiving) {
+            return;
+        }
+        try {
+            archive = new SessionArchive(archiveFile);
+        } catch (Exception e) {
+            System.out.println("Archive " + archiveFile + " cannot be opened, logs will not be archived: " + e);
+        }
+    }
+    
+    private void closeArchive() {
+        if (archive != null) {
+            try {
+                archive.close();
+            } catch (java.io.IOException e) {
+                System.out.println("Archive close failed: " + e);
             }
-            short dataLen = Util.getShort(log, (short) (ptr + 2));
-            if (dataLen == 0) {
-                break;
+        }
+    }
+    
+    /**
+     * Method appending the log synchronized with replay card to the archive.
+     *
+     * @param cardMngrReplay replay card
+     * @param cardMngrTarget target card, null if not connected
+     */
+    void archiveLog(CardManager cardMngrReplay, CardManager cardMngrTarget) {
+        if (archive == null) {
+            return;
+        }
+        try {
+            archive.append(java.lang.System.currentTimeMillis(), logFormat,
+                    getATR(cardMngrReplay), getATR(cardMngrTarget), log, getLogEnd());
+        } catch (Exception e) {
+            System.out.println("Archiving of the log failed: " + e);
+        }
+    }
+    
+    /**
+     * Method printing all archived sessions.
+     */
+    private void listArchive() throws Exception {
+        checkArchiveExists();
+        try (SessionArchive sessions = new SessionArchive(archiveFile)) {
+            java.text.SimpleDateFormat dateFormat = new java.text.SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+            for (int i = 0; i < sessions.size(); i++) {
+                SessionArchive.Session session = sessions.get(i);
+                byte[] replayAtr = new byte[session.getReplayAtr().remaining()];
+                session.getReplayAtr().get(replayAtr);
+                byte[] targetAtr = new byte[session.getTargetAtr().remaining()];
+                session.getTargetAtr().get(targetAtr);
+                System.out.println("SESSION " + i + " " + dateFormat.format(new java.util.Date(session.getTime()))
+                        + " REPLAY " + Util.toHex(replayAtr) + " TARGET " + Util.toHex(targetAtr));
+                logPrinter.print(cursor.reset(session.getLog(), session.getFormat()));
             }
-            System.out.print(Util.toHex(log, ptr, 1));
-            System.out.print(Util.toHex(log, ptr + 1, 1));
-            System.out.print(Util.toHex(log, ptr + 2, 2));
-            ptr = (short) (ptr + 4);
-            for (int i = 0; i < dataLen; i++) {
-                System.out.print(Util.toHex(log, ptr+i, 1));
+        }
+    }
+    
+    /**
+     * Method replaying all archived sessions with LogApplet in jCardSim and
+     * reporting sessions, where LogApplet responds differently from the log.
+     */
+    private void replayArchive() throws Exception {
+        checkArchiveExists();
+        ReplayEngine engine = new ReplayEngine(
+                Class.forName(ReplayEngine.APPLET_CLASS).asSubclass(javacard.framework.Applet.class));
+        try (SessionArchive sessions = new SessionArchive(archiveFile)) {
+            int failed = 0;
+            long elapsed = -java.lang.System.nanoTime();
+            for (int i = 0; i < sessions.size(); i++) {
+                SessionArchive.Session session = sessions.get(i);
+                if (!engine.replay(LogRecord.parse(session.getLog(), session.getFormat()))) {
+                    failed++;
+                    System.out.println("SESSION " + i + " FAILED: " + engine.getMismatch());
+                }
             }
-            System.out.println("|");
-            ptr = (short) (ptr + dataLen);
-        }   
+            elapsed += java.lang.System.nanoTime();
+            System.out.printf("REPLAYED %d sessions, %d APDUs in %.1f ms, %d failed\n",
+                    sessions.size(), engine.getApduCount(), elapsed / 1e6, failed);
+        }
+    }
+    
+    /**
+     * Method refusing to read archive, which does not exist, rather than creating an empty one.
+     */
+    private void checkArchiveExists() throws Exception {
+        if (!new java.io.File(archiveFile).isFile()) {
+            throw new Exception("Archive " + archiveFile + " does not exist");
+        }
+    }
+    
+    private static byte[] getATR(CardManager cardMngr) {
+        if (cardMngr == null) {
+            return new byte[0];
+        }
+        try {
+            return cardMngr.getChannel().getCard().getATR().getBytes();
+        } catch (RuntimeException e) {
+            // Unknown card or simulator without ATR
+            return new byte[0];
+        }
+    }
+    
+    /**
+     * Method finding the end of the last record in the log.
+     *
+     * @return length of the used part of the log
+     */
+    private int getLogEnd() {
+        LogCursor records = cursor.reset(log, logFormat);
+        while (records.next()) {
+            // only the end is needed
+        }
+        return records.getNextOffset();
+    }
+    
+    /**
+     * Method running the whole cycle with already connected cards: readout of
+     * the log, communication with target card and write back of the log.
+     *
+     * @param cardMngrReplay replay card
+     * @param cardMngrTarget target card
+     */
+    public void runCycle(CardManager cardMngrReplay, CardManager cardMngrTarget) throws Exception {
+        cardMngrReplay.setLatencyStats(replayLatency);
+        cardMngrTarget.setLatencyStats(targetLatency);
+        getCardSize(cardMngrReplay);
+        readOutReplay(cardMngrReplay);
+        communicateTarget(cardMngrTarget, cardMngrReplay);
+        printLog();
+        writeInReplay(cardMngrReplay);
+        archiveLog(cardMngrReplay, cardMngrTarget);
+    }
+    
+    /**
+     * Method printing APDU latency statistics of replay and target card,
+     * and hits of response cache.
+     */
+    public void printLatency() {
+        if (!replayLatency.isEmpty()) {
+            replayLatency.print(System.out, "REPLAY CARD LATENCY");
+        }
+        if (!targetLatency.isEmpty()) {
+            targetLatency.print(System.out, "TARGET CARD LATENCY");
+        }
+        if (responseCache != null && !responseCache.isEmpty()) {
+            responseCache.print(System.out);
+        }
+    }
+    
+    public void printLog() throws Exception {
+        logPrinter.print(cursor.reset(log, logFormat));
     }
     
     private void getCardSize(CardManager cardMngr) throws Exception {
         ResponseAPDU response = cardMngr.transmit(new CommandAPDU(CLA_LOGAPPLET, INS_SEND_LOG_LEN, 0x00, 0x00));
         byte[] data = response.getData();
         short CardSize = Util.getShort(data, (short) 0);
+        // Applets supporting Extended APDUs append their maximal data length
+        transferLen = data.length >= 4
+                ? (short) Math.max(APDU_DATA_MAX_LEN, Util.getShort(data, (short) 2))
+                : APDU_DATA_MAX_LEN;
+        // Applets with compact records append the log format
+        logFormat = data.length >= 5 ? LogFormat.forId(data[4]) : LogFormat.LEGACY;
         log = new byte[CardSize];
         java.util.Arrays.fill(log, (byte) 0);
+        replayLog = null;
     }  
     
-    private boolean CheckATRs(Card card, String[] cardATRs) {
-        for (byte i = 0; i < cardATRs.length; i++) {
-            if (Util.toHex(card.getATR().getBytes()).equals(cardATRs[i])) {
-                  return true;
-            }
+    /**
+     * Method loading ATRs from atr.conf, or taking the hardcoded ones if there is no such file.
+     *
+     * @return ATR registry
+     */
+    static AtrRegistry loadDefaultRegistry() throws java.io.IOException {
+        if (new java.io.File(AtrRegistry.DEFAULT_FILE).isFile()) {
+            return AtrRegistry.load(AtrRegistry.DEFAULT_FILE);
         }
-        return false;
+        AtrRegistry registry = new AtrRegistry();
+        registry.add(AtrRegistry.Role.REPLAY, REPLAY_CARD_ATR_ARR);
+        registry.add(AtrRegistry.Role.TARGET, TARGET_CARD_ATR_ARR);
+        return registry;
     }
     
-    private CardManager ConnectPhysicalCard(String[] cardATRs, boolean debug) throws Exception {
-        TerminalFactory factory = TerminalFactory.getDefault();
-
-        try {
-            for (CardTerminal t : factory.terminals().list()) {
-                if (t.isCardPresent()) {
-                    CardManager cardMngr = new CardManager(debug, null);
-                    System.out.println("Card found: " + t.getName());
-                    System.out.print("Connecting...");
-                    Card card = t.connect("*");
-                    
-                    if (!CheckATRs(card, cardATRs)) {
-                        System.out.print("Card has unknown ATR: ");
-                        System.out.println(Util.toHex(card.getATR().getBytes()));
-                        continue;
-                    }
-                    
-                    System.out.println(" Done.");
-                    System.out.print("Establishing channel...");
-                    cardMngr.setChannel(card.getBasicChannel());
-                    System.out.println(" Done.");
-                    return cardMngr;
-                }
-            }
-        } catch (Exception e) {
-            System.out.println("Failed.");
-            throw e;
+    static AtrRegistry.Role getRole(Card card) {
+        return atrRegistry.classify(card.getATR().getBytes());
+    }
+    
+    private CardManager ConnectPhysicalCard(AtrRegistry.Role role, boolean debug) throws Exception {
+        if (readerPool == null) {
+            readerPool = new ReaderPool(TerminalFactory.getDefault().terminals());
         }
-        throw new Exception("No card with corresponding ATR found.");
+        return readerPool.acquire(role, debug);
+    }
+    
+    static CardManager createCardManager(CardTerminal t, Card card, boolean debug) {
+        CardManager cardMngr = new CardManager(debug, null);
+        System.out.print("Establishing channel...");
+        cardMngr.setChannel(card.getBasicChannel());
+        cardMngr.setTerminal(t);
+        System.out.println(" Done.");
+        return cardMngr;
     }
     
     private void ResetLog() {
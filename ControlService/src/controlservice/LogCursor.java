@@ -0,0 +1,282 @@
+package controlservice;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Cursor walking records of the log in place, without copying them. The log
+ * is either an array or a buffer, e.g. a mapped archived session. Records
+ * are checked against the end of the log, the walk stops at the first record
+ * which does not fit or whose head is malformed, as LogApplet does.
+ *
+ * One cursor can be reused for any number of logs by reset().
+ */
+public class LogCursor {
+
+    private LogFormat format = LogFormat.LEGACY;
+    // Log is either array or buffer, offsets are relative to base
+    private byte[] array = null;
+    private ByteBuffer buffer = null;
+    private int base = 0;
+    private int limit = 0;
+
+    private int offset = 0;
+    private int next = 0;
+    private boolean end = false;
+    private int iter;
+    private byte type;
+    private int dataOffset;
+    private int dataLen;
+    // Command APDU is the current header followed by body
+    private int bodyOffset;
+    private int bodyLen;
+    private final byte[] header = new byte[LogFormat.APDU_HEAD_LEN];
+
+    /**
+     * Method starting walk over the log.
+     *
+     * @param log log
+     * @param format record layout of the log
+     * @return this cursor
+     */
+    public LogCursor reset(byte[] log, LogFormat format) {
+        return reset(log, 0, log.length, format);
+    }
+
+    /**
+     * Method starting walk over part of the array.
+     *
+     * @param log array holding the log
+     * @param from offset of the log in the array
+     * @param len length of the log
+     * @param format record layout of the log
+     * @return this cursor
+     */
+    public LogCursor reset(byte[] log, int from, int len, LogFormat format) {
+        if (from < 0 || len < 0 || from + len > log.length) {
+            throw new IndexOutOfBoundsException("Log " + from + "+" + len + " out of array of " + log.length);
+        }
+        this.array = log;
+        this.buffer = null;
+        this.base = from;
+        return start(len, format);
+    }
+
+    /**
+     * Method starting walk over remaining bytes of the buffer. Position of
+     * the buffer is not changed.
+     *
+     * @param log log
+     * @param format record layout of the log
+     * @return this cursor
+     */
+    public LogCursor reset(ByteBuffer log, LogFormat format) {
+        if (log.hasArray()) {
+            return reset(log.array(), log.arrayOffset() + log.position(), log.remaining(), format);
+        }
+        this.array = null;
+        // Own view keeps position of the caller's buffer untouched by bulk copies
+        this.buffer = log.duplicate();
+        this.base = log.position();
+        return start(log.remaining(), format);
+    }
+
+    private LogCursor start(int len, LogFormat format) {
+        this.format = format;
+        this.limit = len;
+        this.offset = 0;
+        this.next = 0;
+        this.end = false;
+        java.util.Arrays.fill(header, (byte) 0);
+        return this;
+    }
+
+    /**
+     * Method moving to the next record.
+     *
+     * @return false if there are no more records
+     */
+    public boolean next() {
+        if (end) {
+            return false;
+        }
+        if (!readHead(next)) {
+            end = true;
+            return false;
+        }
+        offset = next;
+        next = dataOffset + dataLen;
+        return true;
+    }
+
+    private boolean readHead(int at) {
+        int lenOffset;
+        if (format.isCompact()) {
+            if (at + LogFormat.COMPACT_OFFSET_LEN + 1 > limit) {
+                return false;
+            }
+            int first = get(at);
+            type = (byte) (first >> LogFormat.COMPACT_TYPE_SHIFT);
+            iter = first & LogFormat.COMPACT_ITER_MASK;
+            lenOffset = at + LogFormat.COMPACT_OFFSET_LEN;
+            int len = get(lenOffset);
+            if ((len & LogFormat.COMPACT_LEN_LONG) != 0) {
+                if (lenOffset + 2 > limit) {
+                    return false;
+                }
+                dataLen = ((len & ~LogFormat.COMPACT_LEN_LONG) << 8) | get(lenOffset + 1);
+                dataOffset = lenOffset + 2;
+            } else {
+                dataLen = len;
+                dataOffset = lenOffset + 1;
+            }
+        } else {
+            if (at + LogFormat.LEGACY_OFFSET_DATA > limit) {
+                return false;
+            }
+            iter = get(at);
+            type = (byte) get(at + LogFormat.LEGACY_OFFSET_TYPE);
+            dataLen = (get(at + LogFormat.LEGACY_OFFSET_LEN) << 8) | get(at + LogFormat.LEGACY_OFFSET_LEN + 1);
+            dataOffset = at + LogFormat.LEGACY_OFFSET_DATA;
+        }
+        if (dataLen == 0 || dataOffset + dataLen > limit) {
+            return false;
+        }
+        bodyOffset = dataOffset;
+        bodyLen = dataLen;
+        if (type != LogFormat.APDU_T) {
+            return true;
+        }
+        if (!format.isCompact()) {
+            int headLen = Math.min(dataLen, LogFormat.APDU_HEAD_LEN);
+            for (int i = 0; i < headLen; i++) {
+                header[i] = (byte) get(dataOffset + i);
+            }
+            bodyOffset += headLen;
+            bodyLen -= headLen;
+            return true;
+        }
+        // Header bytes are applied only when the whole record is valid
+        int mask = get(dataOffset);
+        int ptr = dataOffset + 1;
+        for (int i = 0; i < LogFormat.APDU_HEAD_LEN; i++) {
+            if ((mask & (LogFormat.COMPACT_HEAD_DELTA_CLA >> i)) != 0) {
+                ptr++;
+            }
+        }
+        if (ptr > dataOffset + dataLen) {
+            return false;
+        }
+        ptr = dataOffset + 1;
+        for (int i = 0; i < LogFormat.APDU_HEAD_LEN; i++) {
+            if ((mask & (LogFormat.COMPACT_HEAD_DELTA_CLA >> i)) != 0) {
+                header[i] = (byte) get(ptr++);
+            }
+        }
+        bodyOffset = ptr;
+        bodyLen = dataOffset + dataLen - ptr;
+        return true;
+    }
+
+    private int get(int at) {
+        return (array != null ? array[base + at] : buffer.get(base + at)) & 0xff;
+    }
+
+    /**
+     * @return offset of the current record in the log
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return offset behind the current record, end of the used part of the log when walk ended
+     */
+    public int getNextOffset() {
+        return next;
+    }
+
+    /**
+     * Method reading iteration number of record. Compact format keeps only
+     * the lower seven bits of it.
+     *
+     * @return iteration number
+     */
+    public int getIter() {
+        return iter;
+    }
+
+    /**
+     * @return LogFormat.APDU_T or LogFormat.RSPS_T
+     */
+    public byte getType() {
+        return type;
+    }
+
+    public boolean isCommand() {
+        return type == LogFormat.APDU_T;
+    }
+
+    /**
+     * @return length of the whole Command APDU or of response data followed by SW
+     */
+    public int getLength() {
+        if (isCommand() && format.isCompact()) {
+            return LogFormat.APDU_HEAD_LEN + bodyLen;
+        }
+        return dataLen;
+    }
+
+    /**
+     * @return length of response data without SW, length of Command APDU for command record
+     */
+    public int getBodyLen() {
+        return isCommand() || dataLen < 2 ? getLength() : dataLen - 2;
+    }
+
+    /**
+     * @return status word of response record, -1 for command record
+     */
+    public int getSW() {
+        if (isCommand() || dataLen < 2) {
+            return -1;
+        }
+        return (get(dataOffset + dataLen - 2) << 8) | get(dataOffset + dataLen - 1);
+    }
+
+    /**
+     * Method copying the whole Command APDU or response data followed by SW.
+     *
+     * @param out destination, at least getLength() bytes from outOffset
+     * @param outOffset offset in destination
+     * @return number of copied bytes
+     */
+    public int copyTo(byte[] out, int outOffset) {
+        int ptr = outOffset;
+        if (isCommand() && format.isCompact()) {
+            System.arraycopy(header, 0, out, ptr, LogFormat.APDU_HEAD_LEN);
+            ptr += LogFormat.APDU_HEAD_LEN;
+            copy(bodyOffset, out, ptr, bodyLen);
+            return LogFormat.APDU_HEAD_LEN + bodyLen;
+        }
+        copy(dataOffset, out, ptr, dataLen);
+        return dataLen;
+    }
+
+    /**
+     * @return the whole Command APDU or response data followed by SW in a new array
+     */
+    public byte[] getData() {
+        byte[] data = new byte[getLength()];
+        copyTo(data, 0);
+        return data;
+    }
+
+    private void copy(int from, byte[] out, int outOffset, int len) {
+        if (array != null) {
+            System.arraycopy(array, base + from, out, outOffset, len);
+        } else {
+            buffer.position(base + from);
+            buffer.get(out, outOffset, len);
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package controlservice;
+
+/**
+ * Layout of records in the log of LogApplet.
+ *
+ * Legacy record is | iter (1) | type (1) | length (2) | data |.
+ * Compact record is | type and iter (1) | length (1-2) | data |, where
+ * type is the top bit and iteration the lower seven bits of the first byte.
+ * Length below 0x80 takes one byte, otherwise two bytes with the top bit set.
+ * Data of compact command record start with mask of header bytes (CLA, INS,
+ * P1, P2) differing from the previous Command APDU, followed by these bytes
+ * and the rest of Command APDU.
+ *
+ * Records are read by LogCursor.
+ */
+public class LogFormat {
+
+    final static byte FORMAT_LEGACY = (byte) 0x00;
+    final static byte FORMAT_COMPACT = (byte) 0x01;
+
+    final static byte APDU_T = (byte) 0x00;
+    final static byte RSPS_T = (byte) 0x01;
+
+    public final static int APDU_HEAD_LEN = 4;
+
+    final static int LEGACY_OFFSET_TYPE = 1;
+    final static int LEGACY_OFFSET_LEN = 2;
+    final static int LEGACY_OFFSET_DATA = 4;
+
+    final static int COMPACT_OFFSET_LEN = 1;
+    final static int COMPACT_TYPE_SHIFT = 7;
+    final static int COMPACT_ITER_MASK = 0x7f;
+    final static int COMPACT_LEN_LONG = 0x80;
+    final static int COMPACT_HEAD_DELTA_CLA = 0x08;
+
+    public final static LogFormat LEGACY = new LogFormat(false);
+    public final static LogFormat COMPACT = new LogFormat(true);
+
+    private final boolean compact;
+
+    private LogFormat(boolean compact) {
+        this.compact = compact;
+    }
+
+    /**
+     * Method choosing format according to the identifier sent by LogApplet.
+     *
+     * @param id format identifier
+     * @return log format
+     */
+    public static LogFormat forId(byte id) {
+        return id == FORMAT_COMPACT ? COMPACT : LEGACY;
+    }
+
+    /**
+     * @return format identifier as sent by LogApplet
+     */
+    public byte getId() {
+        return compact ? FORMAT_COMPACT : FORMAT_LEGACY;
+    }
+
+    public boolean isCompact() {
+        return compact;
+    }
+
+    /**
+     * Method computing space taken by record.
+     *
+     * @param dataLen length of record data
+     * @return length of record including its head
+     */
+    public int getRecordLen(int dataLen) {
+        if (!compact) {
+            return LEGACY_OFFSET_DATA + dataLen;
+        }
+        return COMPACT_OFFSET_LEN + (dataLen >= COMPACT_LEN_LONG ? 2 : 1) + dataLen;
+    }
+
+    /**
+     * Method writing command record.
+     *
+     * @param log log
+     * @param offset offset of record
+     * @param iter iteration number
+     * @param apdu Command APDU as logged by LogApplet
+     * @param header header of the previous Command APDU, replaced by header of this one
+     * @return offset of the next record
+     */
+    public int putCommand(byte[] log, int offset, int iter, byte[] apdu, byte[] header) {
+        if (!compact) {
+            System.arraycopy(apdu, 0, header, 0, Math.min(apdu.length, APDU_HEAD_LEN));
+            int ptr = putHead(log, offset, iter, APDU_T, apdu.length);
+            System.arraycopy(apdu, 0, log, ptr, apdu.length);
+            return ptr + apdu.length;
+        }
+        int mask = 0;
+        int dataLen = apdu.length - APDU_HEAD_LEN + 1;
+        for (int i = 0; i < APDU_HEAD_LEN; i++) {
+            if (apdu[i] != header[i]) {
+                mask |= COMPACT_HEAD_DELTA_CLA >> i;
+                dataLen++;
+            }
+        }
+        int ptr = putHead(log, offset, iter, APDU_T, dataLen);
+        log[ptr++] = (byte) mask;
+        for (int i = 0; i < APDU_HEAD_LEN; i++) {
+            if ((mask & (COMPACT_HEAD_DELTA_CLA >> i)) != 0) {
+                log[ptr++] = apdu[i];
+            }
+        }
+        System.arraycopy(apdu, APDU_HEAD_LEN, log, ptr, apdu.length - APDU_HEAD_LEN);
+        System.arraycopy(apdu, 0, header, 0, APDU_HEAD_LEN);
+        return ptr + apdu.length - APDU_HEAD_LEN;
+    }
+
+    /**
+     * Method writing response record with response data followed by SW.
+     *
+     * @param log log
+     * @param offset offset of record
+     * @param iter iteration number
+     * @param data response data
+     * @param sw status word
+     * @return offset of the next record
+     */
+    public int putResponse(byte[] log, int offset, int iter, byte[] data, int sw) {
+        int ptr = putHead(log, offset, iter, RSPS_T, data.length + 2);
+        System.arraycopy(data, 0, log, ptr, data.length);
+        ptr += data.length;
+        log[ptr++] = (byte) (sw >> 8);
+        log[ptr++] = (byte) sw;
+        return ptr;
+    }
+
+    /**
+     * Method completing response record whose response data and SW were
+     * received into the log behind the shortest head, at offset + getRecordLen(0).
+     * Received bytes are moved when the record needs a longer head.
+     *
+     * @param log log
+     * @param offset offset of record
+     * @param iter iteration number
+     * @param len length of response data including SW
+     * @return offset of the next record
+     */
+    public int completeResponse(byte[] log, int offset, int iter, int len) {
+        int received = offset + getRecordLen(0);
+        int dataOffset = offset + getRecordLen(len) - len;
+        if (dataOffset != received) {
+            System.arraycopy(log, received, log, dataOffset, len);
+        }
+        putHead(log, offset, iter, RSPS_T, len);
+        return dataOffset + len;
+    }
+
+    private int putHead(byte[] log, int offset, int iter, byte type, int len) {
+        if (!compact) {
+            log[offset] = (byte) iter;
+            log[offset + LEGACY_OFFSET_TYPE] = type;
+            log[offset + LEGACY_OFFSET_LEN] = (byte) (len >> 8);
+            log[offset + LEGACY_OFFSET_LEN + 1] = (byte) len;
+            return offset + LEGACY_OFFSET_DATA;
+        }
+        log[offset] = (byte) ((type << COMPACT_TYPE_SHIFT) | (iter & COMPACT_ITER_MASK));
+        int ptr = offset + COMPACT_OFFSET_LEN;
+        if (len >= COMPACT_LEN_LONG) {
+            log[ptr++] = (byte) (COMPACT_LEN_LONG | (len >> 8));
+        }
+        log[ptr++] = (byte) len;
+        return ptr;
+    }
+}
@@ -0,0 +1,182 @@
+package controlservice;
+
+import cardTools.Util;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+
+/**
+ * Printer of parsed log records. All output goes through one buffered writer.
+ *
+ * TEXT prints records in legacy layout | iter | type | length | data |
+ * whatever the format of the log is. Records without the LOG: heading are
+ * taken back by option -w, which stores them in the format of the replay
+ * card. CSV prints columns iter,type,data,sw and JSON prints one object per
+ * line with the same fields.
+ */
+public class LogPrinter {
+
+    public enum Style {
+        TEXT, CSV, JSON
+    }
+
+    final static int OUT_BUFFER_LEN = 1 << 16;
+    final static String NEW_LINE = System.lineSeparator();
+    // Longest record data together with header of compact command record
+    final static int RECORD_MAX_LEN = 0xffff + LogFormat.APDU_HEAD_LEN;
+
+    private final Style style;
+    // Record buffer reused by cursor printing, allocated on first use
+    private byte[] recordData = null;
+
+    public LogPrinter(Style style) {
+        this.style = style;
+    }
+
+    /**
+     * Method choosing printer by name given on command line.
+     *
+     * @param name text, csv or json
+     * @return printer
+     */
+    public static LogPrinter forName(String name) {
+        for (Style s : Style.values()) {
+            if (s.name().equalsIgnoreCase(name)) {
+                return new LogPrinter(s);
+            }
+        }
+        throw new IllegalArgumentException("Unknown log output format: " + name + ", use text, csv or json");
+    }
+
+    public Style getStyle() {
+        return style;
+    }
+
+    /**
+     * Method printing records to standard output.
+     *
+     * @param records parsed log
+     */
+    public void print(List<LogRecord> records) throws IOException {
+        // Logs of concurrent sessions must not interleave
+        synchronized (System.out) {
+            Writer out = new BufferedWriter(new OutputStreamWriter(System.out), OUT_BUFFER_LEN);
+            print(records, out);
+            out.flush();
+        }
+    }
+
+    /**
+     * Method printing records walked by the cursor to standard output.
+     *
+     * @param cursor cursor at the start of the log
+     */
+    public void print(LogCursor cursor) throws IOException {
+        synchronized (System.out) {
+            Writer out = new BufferedWriter(new OutputStreamWriter(System.out), OUT_BUFFER_LEN);
+            print(cursor, out);
+            out.flush();
+        }
+    }
+
+    /**
+     * Method printing records to the writer. Writer is neither flushed nor closed.
+     *
+     * @param records parsed log
+     * @param out destination
+     */
+    public void print(List<LogRecord> records, Writer out) throws IOException {
+        printHeading(out);
+        for (LogRecord record : records) {
+            byte[] data = record.getData();
+            printRecord(record.getIter(), record.getType(), data, data.length, record.getBodyLen(), out);
+        }
+    }
+
+    /**
+     * Method printing records walked by the cursor to the writer. Records
+     * are not kept, so logs of any size are printed in constant memory.
+     *
+     * @param cursor cursor at the start of the log
+     * @param out destination
+     */
+    public synchronized void print(LogCursor cursor, Writer out) throws IOException {
+        printHeading(out);
+        if (recordData == null) {
+            recordData = new byte[RECORD_MAX_LEN];
+        }
+        while (cursor.next()) {
+            int len = cursor.copyTo(recordData, 0);
+            printRecord(cursor.getIter(), cursor.getType(), recordData, len, cursor.getBodyLen(), out);
+        }
+    }
+
+    private void printHeading(Writer out) throws IOException {
+        switch (style) {
+            case TEXT:
+                out.write("LOG:" + NEW_LINE);
+                break;
+            case CSV:
+                out.write("iter,type,data,sw" + NEW_LINE);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * @param data whole Command APDU or response data followed by SW
+     * @param len length of data
+     * @param bodyLen length of data without SW
+     */
+    private void printRecord(int iter, byte type, byte[] data, int len, int bodyLen, Writer out) throws IOException {
+        switch (style) {
+            case TEXT:
+                printText(iter, type, data, len, out);
+                break;
+            case CSV:
+                printCsv(iter, type, data, len, bodyLen, out);
+                break;
+            default:
+                printJson(iter, type, data, len, bodyLen, out);
+                break;
+        }
+    }
+
+    private void printText(int iter, byte type, byte[] data, int len, Writer out) throws IOException {
+        Util.appendHex(out, iter);
+        Util.appendHex(out, type);
+        Util.appendHex(out, len >>> 8);
+        Util.appendHex(out, len);
+        Util.appendHex(out, data, 0, len);
+        out.write("|" + NEW_LINE);
+    }
+
+    private void printCsv(int iter, byte type, byte[] data, int len, int bodyLen, Writer out) throws IOException {
+        out.write(Integer.toString(iter));
+        out.write(type == LogFormat.APDU_T ? ",command," : ",response,");
+        Util.appendHex(out, data, 0, bodyLen);
+        out.write(',');
+        if (bodyLen < len) {
+            Util.appendHex(out, data, bodyLen, 2);
+        }
+        out.write(NEW_LINE);
+    }
+
+    private void printJson(int iter, byte type, byte[] data, int len, int bodyLen, Writer out) throws IOException {
+        out.write("{\"iter\":");
+        out.write(Integer.toString(iter));
+        out.write(type == LogFormat.APDU_T ? ",\"type\":\"command\",\"data\":\"" : ",\"type\":\"response\",\"data\":\"");
+        Util.appendHex(out, data, 0, bodyLen);
+        out.write('"');
+        if (bodyLen < len) {
+            out.write(",\"sw\":\"");
+            Util.appendHex(out, data, bodyLen, 2);
+            out.write('"');
+        }
+        out.write("}" + NEW_LINE);
+    }
+}
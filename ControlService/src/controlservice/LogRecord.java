@@ -0,0 +1,89 @@
+package controlservice;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One record of the log, either logged Command APDU or Response APDU of
+ * target card. Command record holds the whole Command APDU regardless of
+ * the log format, response record holds response data followed by SW.
+ */
+public class LogRecord {
+
+    private final int iter;
+    private final byte type;
+    private final byte[] data;
+
+    LogRecord(int iter, byte type, byte[] data) {
+        this.iter = iter;
+        this.type = type;
+        this.data = data;
+    }
+
+    /**
+     * Method parsing all records of the log.
+     *
+     * @param log log
+     * @param format record layout of the log
+     * @return records in the order of the log
+     */
+    public static List<LogRecord> parse(byte[] log, LogFormat format) {
+        return parse(new LogCursor().reset(log, format));
+    }
+
+    /**
+     * Method parsing all records of the log in remaining bytes of the buffer.
+     *
+     * @param log log, position is not changed
+     * @param format record layout of the log
+     * @return records in the order of the log
+     */
+    public static List<LogRecord> parse(ByteBuffer log, LogFormat format) {
+        return parse(new LogCursor().reset(log, format));
+    }
+
+    private static List<LogRecord> parse(LogCursor cursor) {
+        List<LogRecord> records = new ArrayList<>();
+        while (cursor.next()) {
+            records.add(new LogRecord(cursor.getIter(), cursor.getType(), cursor.getData()));
+        }
+        return records;
+    }
+
+    public int getIter() {
+        return iter;
+    }
+
+    public byte getType() {
+        return type;
+    }
+
+    public boolean isCommand() {
+        return type == LogFormat.APDU_T;
+    }
+
+    /**
+     * @return whole Command APDU or response data followed by SW
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    /**
+     * @return length of response data without SW, length of Command APDU for command record
+     */
+    public int getBodyLen() {
+        return isCommand() || data.length < 2 ? data.length : data.length - 2;
+    }
+
+    /**
+     * @return status word of response record, -1 for command record
+     */
+    public int getSW() {
+        if (isCommand() || data.length < 2) {
+            return -1;
+        }
+        return ((data[data.length - 2] & 0xff) << 8) | (data[data.length - 1] & 0xff);
+    }
+}
@@ -0,0 +1,187 @@
+package controlservice;
+
+import cardTools.CardManager;
+import cardTools.Util;
+
+import javax.smartcardio.*;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Pool of connections to cards in PC/SC readers, keyed by terminal name.
+ * Readers are enumerated only when no known reader holds a card of the
+ * requested role. Card handles are kept between cycles, a handle left stale
+ * by removal or reset of the card is reconnected. Reader of card released
+ * with reset is reconnected by the next acquire of any role, the card may
+ * have been replaced meanwhile. Cards with unknown ATR are disconnected at
+ * once.
+ */
+public class ReaderPool {
+
+    private static class Entry {
+        final CardTerminal terminal;
+        Card card = null;
+        CardManager cardMngr = null;
+        AtrRegistry.Role role = AtrRegistry.Role.UNKNOWN;
+        boolean inUse = false;
+
+        Entry(CardTerminal terminal) {
+            this.terminal = terminal;
+        }
+    }
+
+    private final CardTerminals terminals;
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+
+    /**
+     * @param terminals readers served by the pool
+     */
+    public ReaderPool(CardTerminals terminals) {
+        this.terminals = terminals;
+    }
+
+    /**
+     * Method taking card of the role from the pool, connecting it if needed.
+     * Card stays taken until release.
+     *
+     * @param role role of the card by ATR registry
+     * @param debug debug output of CardManager
+     * @return connected card
+     * @throws Exception if no reader holds card of the role
+     */
+    public synchronized CardManager acquire(AtrRegistry.Role role, boolean debug) throws Exception {
+        // Known readers first, warm handles are checked instead of enumerating all readers
+        for (Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+            Entry entry = it.next();
+            // Role of a reader without card is known only after reconnect
+            if (entry.inUse || (entry.card != null && entry.role != role)) {
+                continue;
+            }
+            if (entry.card != null && !isAlive(entry.card)) {
+                System.out.println("Connection to " + entry.terminal.getName() + " is stale, reconnecting.");
+                disconnect(entry, false);
+            }
+            if (entry.card == null && !connect(entry)) {
+                it.remove();
+                continue;
+            }
+            if (entry.role == role) {
+                return take(entry, debug);
+            }
+        }
+        for (CardTerminal t : terminals.list(CardTerminals.State.CARD_PRESENT)) {
+            if (entries.containsKey(t.getName())) {
+                continue;
+            }
+            Entry entry = new Entry(t);
+            if (!connect(entry)) {
+                continue;
+            }
+            entries.put(t.getName(), entry);
+            if (entry.role == role) {
+                return take(entry, debug);
+            }
+        }
+        throw new Exception("No card with corresponding ATR found.");
+    }
+
+    /**
+     * Method returning card to the pool.
+     *
+     * @param cardMngr card taken by acquire
+     * @param reset true to reset the card, it is reconnected by the next acquire
+     */
+    public synchronized void release(CardManager cardMngr, boolean reset) {
+        for (Entry entry : entries.values()) {
+            if (entry.cardMngr == cardMngr) {
+                entry.inUse = false;
+                if (reset) {
+                    disconnect(entry, true);
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Method disconnecting all cards and emptying the pool.
+     *
+     * @param reset true to reset the cards
+     */
+    public synchronized void close(boolean reset) {
+        for (Entry entry : entries.values()) {
+            disconnect(entry, reset);
+        }
+        entries.clear();
+    }
+
+    private CardManager take(Entry entry, boolean debug) {
+        entry.inUse = true;
+        entry.cardMngr.setbDebug(debug);
+        return entry.cardMngr;
+    }
+
+    /**
+     * Method connecting card in the reader of entry and finding its role.
+     *
+     * @param entry reader
+     * @return false if there is no card or it has unknown ATR
+     */
+    private boolean connect(Entry entry) {
+        CardTerminal t = entry.terminal;
+        try {
+            if (!t.isCardPresent()) {
+                return false;
+            }
+            System.out.println("Card found: " + t.getName());
+            System.out.print("Connecting...");
+            Card card = t.connect("*");
+            AtrRegistry.Role role = ControlService.getRole(card);
+            if (role == AtrRegistry.Role.UNKNOWN) {
+                System.out.print("Card has unknown ATR: ");
+                System.out.println(Util.toHex(card.getATR().getBytes()));
+                card.disconnect(false);
+                return false;
+            }
+            System.out.println(" Done.");
+            entry.card = card;
+            entry.role = role;
+            entry.cardMngr = ControlService.createCardManager(t, card, false);
+            return true;
+        } catch (CardException e) {
+            System.out.println("Connection failed: " + e);
+            return false;
+        }
+    }
+
+    /**
+     * Method checking that card handle still works without sending an APDU.
+     * PC/SC refuses transaction on handle of removed or reset card.
+     *
+     * @param card connected card
+     * @return false if the handle is stale
+     */
+    private static boolean isAlive(Card card) {
+        try {
+            card.beginExclusive();
+            card.endExclusive();
+            return true;
+        } catch (CardException | IllegalStateException e) {
+            return false;
+        }
+    }
+
+    private static void disconnect(Entry entry, boolean reset) {
+        if (entry.card == null) {
+            return;
+        }
+        try {
+            entry.card.disconnect(reset);
+        } catch (CardException | IllegalStateException e) {
+            System.out.println("Disconnect failed: " + e);
+        }
+        entry.card = null;
+        entry.cardMngr = null;
+    }
+}
@@ -0,0 +1,145 @@
+package controlservice;
+
+import cardTools.CardManager;
+import cardTools.RunConfig;
+import cardTools.Util;
+import javacard.framework.Applet;
+
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Offline replay of captured logs. LogApplet runs in jCardSim, every log is
+ * written into it by INS_MODIFY_LOG and its Command APDUs are sent again as
+ * by the terminal. Responses of LogApplet are compared with the logged ones.
+ */
+public class ReplayEngine {
+
+    public final static String APPLET_CLASS = "logapplet.LogApplet";
+    final static byte[] APPLET_AID = Util.hexStringToByteArray("73696d706c666170706c6575");
+    // Largest log LogApplet can hold
+    final static int LOG_CAPACITY = 0x7fff;
+    final static int RESPONSE_MAX_LEN = 65536 + 2;
+
+    private final CardManager cardMngr;
+    private final LogFormat format;
+    private final int transferLen;
+    private final byte[] image = new byte[LOG_CAPACITY];
+    private final ByteBuffer response = ByteBuffer.allocate(RESPONSE_MAX_LEN);
+    private long apduCount = 0;
+    private String mismatch = null;
+
+    /**
+     * Installs applet into jCardSim with the largest log.
+     * @param appletClass LogApplet or its modified version
+     */
+    public ReplayEngine(Class<? extends Applet> appletClass) throws Exception {
+        cardMngr = new CardManager(false, APPLET_AID);
+        RunConfig runCfg = RunConfig.getDefaultConfig();
+        runCfg.setAppletToSimulate(appletClass);
+        runCfg.setTestCardType(RunConfig.CARD_TYPE.JCARDSIMLOCAL);
+        runCfg.setbLogSimulatorApdus(false);
+        // | AID length | AID | privileges length | proprietary length | log capacity |
+        runCfg.setInstallData(Util.concat(new byte[] {(byte) APPLET_AID.length}, APPLET_AID,
+                new byte[] {0, 2, (byte) (LOG_CAPACITY >> 8), (byte) LOG_CAPACITY}));
+        if (!cardMngr.Connect(runCfg)) {
+            throw new Exception("Failed to install " + appletClass.getName() + " in jCardSim.");
+        }
+
+        ResponseAPDU rsps = cardMngr.transmit(new CommandAPDU(ControlService.CLA_LOGAPPLET, ControlService.INS_SEND_LOG_LEN, 0x00, 0x00));
+        byte[] data = rsps.getData();
+        if (rsps.getSW() != 0x9000 || data.length < 2) {
+            throw new Exception("Applet does not report log size.");
+        }
+        transferLen = data.length >= 4 ? Math.max(ControlService.APDU_DATA_MAX_LEN, Util.getShort(data, (short) 2))
+                : ControlService.APDU_DATA_MAX_LEN;
+        format = data.length >= 5 ? LogFormat.forId(data[4]) : LogFormat.LEGACY;
+    }
+
+    /**
+     * Method replaying one session. Log is converted to the format of the
+     * applet, so logs of older applets can be replayed too.
+     *
+     * @param records records of captured log
+     * @return true if all responses match the log
+     */
+    public boolean replay(List<LogRecord> records) throws Exception {
+        mismatch = null;
+        int logLen = encode(records);
+        if (logLen < 0) {
+            mismatch = "log does not fit into " + LOG_CAPACITY + " bytes";
+            return false;
+        }
+        // Clear also restarts iteration count of the applet
+        transmitService(ControlService.INS_CLEAR_LOG, 0, null, 0, 0);
+        for (int offset = 0; offset < logLen; offset += transferLen) {
+            transmitService(ControlService.INS_MODIFY_LOG, offset, image, offset, Math.min(transferLen, logLen - offset));
+        }
+
+        for (int i = 0; i + 1 < records.size(); i += 2) {
+            LogRecord command = records.get(i);
+            LogRecord expected = records.get(i + 1);
+            if (!command.isCommand() || expected.isCommand()) {
+                mismatch = "record " + i + " is not a command followed by response";
+                return false;
+            }
+            response.clear();
+            int len = cardMngr.getChannel().transmit(ByteBuffer.wrap(command.getData()), response);
+            apduCount++;
+            byte[] expectedData = expected.getData();
+            if (len != expectedData.length || !response.flip().equals(ByteBuffer.wrap(expectedData))) {
+                byte[] actual = new byte[len];
+                response.position(0);
+                response.get(actual);
+                mismatch = "iteration " + command.getIter() + " " + Util.toHex(command.getData())
+                        + " expected " + Util.toHex(expectedData) + " got " + Util.toHex(actual);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return description of the first difference found by the last replay, null if there was none
+     */
+    public String getMismatch() {
+        return mismatch;
+    }
+
+    /**
+     * @return number of replayed Command APDUs
+     */
+    public long getApduCount() {
+        return apduCount;
+    }
+
+    private int encode(List<LogRecord> records) {
+        byte[] header = new byte[LogFormat.APDU_HEAD_LEN];
+        int offset = 0;
+        for (LogRecord record : records) {
+            // Longest record head and a spare byte
+            if (offset + record.getData().length + LogFormat.APDU_HEAD_LEN + 2 > image.length) {
+                return -1;
+            }
+            if (record.isCommand()) {
+                offset = format.putCommand(image, offset, record.getIter(), record.getData(), header);
+            } else {
+                offset = format.putResponse(image, offset, record.getIter(),
+                        java.util.Arrays.copyOf(record.getData(), record.getBodyLen()), record.getSW());
+            }
+        }
+        return offset;
+    }
+
+    private void transmitService(byte ins, int offset, byte[] data, int dataOffset, int len) throws Exception {
+        CommandAPDU cmd = data == null
+                ? new CommandAPDU(ControlService.CLA_LOGAPPLET, ins, offset >> 8, offset & 0xff)
+                : new CommandAPDU(ControlService.CLA_LOGAPPLET, ins, offset >> 8, offset & 0xff, data, dataOffset, len);
+        ResponseAPDU rsps = cardMngr.transmit(cmd);
+        if (rsps.getSW() != 0x9000) {
+            throw new Exception("Log preload failed at offset " + offset + " with SW " + Integer.toHexString(rsps.getSW()));
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package controlservice;
+
+import cardTools.Util;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Cache of target card responses to Command APDUs, which the card answers
+ * always the same way. Responses are looked up by hash of the whole Command
+ * APDU and ATR of the target card, only commands with whitelisted CLA and
+ * INS are cached. The least recently used response is evicted when the
+ * cache is full. Only successful responses (SW 9000) are stored.
+ *
+ * Command answered from cache never reaches the card, so commands changing
+ * state of the card must not be whitelisted unless all commands depending
+ * on it are cached too.
+ */
+public class ResponseCache {
+
+    public final static int DEFAULT_CAPACITY = 1024;
+
+    private static class Key {
+        byte[] atr;
+        byte[] command;
+        int len;
+        int hash;
+
+        Key set(byte[] atr, byte[] command, int len) {
+            this.atr = atr;
+            this.command = command;
+            this.len = len;
+            int h = Arrays.hashCode(atr);
+            for (int i = 0; i < len; i++) {
+                h = 31 * h + command[i];
+            }
+            this.hash = h;
+            return this;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            if (hash != other.hash || len != other.len || !Arrays.equals(atr, other.atr)) {
+                return false;
+            }
+            for (int i = 0; i < len; i++) {
+                if (command[i] != other.command[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private final int capacity;
+    private final Set<Integer> allowed = new HashSet<>();
+    private final Map<Key, byte[]> responses;
+    // Lookups reuse one key over the caller's array, stored keys own a copy
+    private final Key probe = new Key();
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * @param capacity maximal number of cached responses
+     */
+    public ResponseCache(final int capacity) {
+        this.capacity = capacity;
+        this.responses = new LinkedHashMap<Key, byte[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, byte[]> eldest) {
+                return size() > ResponseCache.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * Method creating cache from whitelist given on command line.
+     *
+     * @param list comma separated CLA and INS pairs in hex, e.g. 00A4,00B2
+     * @return cache with default capacity
+     */
+    public static ResponseCache parse(String list) {
+        ResponseCache cache = new ResponseCache(DEFAULT_CAPACITY);
+        for (String pair : list.split(",")) {
+            byte[] claIns = Util.hexStringToByteArray(pair.trim());
+            if (claIns.length != 2) {
+                throw new IllegalArgumentException("Expected CLA and INS in hex: " + pair);
+            }
+            cache.allow(claIns[0], claIns[1]);
+        }
+        return cache;
+    }
+
+    /**
+     * Method adding CLA and INS pair to the whitelist.
+     *
+     * @param cla class byte
+     * @param ins instruction byte
+     */
+    public synchronized void allow(int cla, int ins) {
+        allowed.add(((cla & 0xff) << 8) | (ins & 0xff));
+    }
+
+    /**
+     * @param command Command APDU
+     * @param len length of Command APDU
+     * @return true if response to the command may be cached
+     */
+    public synchronized boolean isCacheable(byte[] command, int len) {
+        return len >= LogFormat.APDU_HEAD_LEN && allowed.contains(((command[0] & 0xff) << 8) | (command[1] & 0xff));
+    }
+
+    /**
+     * Method copying cached response into the output array.
+     *
+     * @param atr ATR of target card
+     * @param command Command APDU
+     * @param len length of Command APDU
+     * @param out output array
+     * @param outOffset offset in output array
+     * @param outLimit end of space available in output array
+     * @return length of response including SW, -1 if there is no cached
+     * response or it does not fit
+     */
+    public synchronized int get(byte[] atr, byte[] command, int len, byte[] out, int outOffset, int outLimit) {
+        byte[] response = responses.get(probe.set(atr, command, len));
+        probe.set(null, null, 0);
+        if (response == null || outOffset + response.length > outLimit) {
+            misses++;
+            return -1;
+        }
+        hits++;
+        System.arraycopy(response, 0, out, outOffset, response.length);
+        return response.length;
+    }
+
+    /**
+     * Method storing response of target card, unsuccessful responses are ignored.
+     *
+     * @param atr ATR of target card
+     * @param command Command APDU
+     * @param len length of Command APDU
+     * @param response array holding response data followed by SW
+     * @param offset offset of response in the array
+     * @param responseLen length of response including SW
+     */
+    public synchronized void put(byte[] atr, byte[] command, int len, byte[] response, int offset, int responseLen) {
+        if (responseLen < 2 || response[offset + responseLen - 2] != (byte) 0x90
+                || response[offset + responseLen - 1] != 0x00) {
+            return;
+        }
+        responses.put(new Key().set(atr, Arrays.copyOf(command, len), len),
+                Arrays.copyOfRange(response, offset, offset + responseLen));
+    }
+
+    public synchronized boolean isEmpty() {
+        return hits + misses == 0;
+    }
+
+    /**
+     * Method printing hits and misses of the cache.
+     *
+     * @param out output
+     */
+    public synchronized void print(PrintStream out) {
+        out.printf("RESPONSE CACHE: %d hits, %d misses, %d of %d responses cached\n",
+                hits, misses, responses.size(), capacity);
+    }
+}
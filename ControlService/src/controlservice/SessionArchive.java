@@ -0,0 +1,223 @@
+package controlservice;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Append-only archive of synchronized logs. Data and index are separate
+ * files accessed through memory mapping, so sessions are read without
+ * loading the archive to heap.
+ *
+ * Data entry is | magic (4) | entry length (4) | time (8) | log format (1) |
+ * replay ATR length (1) | replay ATR | target ATR length (1) | target ATR |
+ * log length (4) | log |.
+ * Index entry is | data offset (8) | time (8) | entry length (4) |.
+ */
+public class SessionArchive implements Closeable {
+
+    public final static String DEFAULT_FILE = "sessions.archive";
+    final static String INDEX_SUFFIX = ".idx";
+
+    final static int ENTRY_MAGIC = 0x41504C47; // "APLG"
+    final static int ENTRY_HEAD_LEN = 4 + 4 + 8 + 1;
+    final static int INDEX_ENTRY_LEN = 8 + 8 + 4;
+
+    private final FileChannel data;
+    private final FileChannel index;
+    private MappedByteBuffer indexMap = null;
+
+    /**
+     * Archived session. Log and ATRs are views of the mapped archive.
+     */
+    public static class Session {
+        private final long time;
+        private final LogFormat format;
+        private final ByteBuffer replayAtr;
+        private final ByteBuffer targetAtr;
+        private final ByteBuffer log;
+
+        Session(ByteBuffer entry) {
+            entry.position(8);
+            time = entry.getLong();
+            format = LogFormat.forId(entry.get());
+            replayAtr = slice(entry, entry.get() & 0xff);
+            targetAtr = slice(entry, entry.get() & 0xff);
+            log = slice(entry, entry.getInt());
+        }
+
+        private static ByteBuffer slice(ByteBuffer entry, int len) {
+            ByteBuffer part = entry.slice();
+            part.limit(len);
+            entry.position(entry.position() + len);
+            return part.asReadOnlyBuffer();
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        public LogFormat getFormat() {
+            return format;
+        }
+
+        public ByteBuffer getReplayAtr() {
+            return replayAtr.duplicate();
+        }
+
+        public ByteBuffer getTargetAtr() {
+            return targetAtr.duplicate();
+        }
+
+        public ByteBuffer getLog() {
+            return log.duplicate();
+        }
+    }
+
+    /**
+     * Opens archive, creating it if it does not exist. Index entries missing
+     * after interrupted append are restored and incomplete data are cut off.
+     * @param fileName path to the data file, index is stored next to it
+     */
+    public SessionArchive(String fileName) throws IOException {
+        data = FileChannel.open(new File(fileName).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        index = FileChannel.open(new File(fileName + INDEX_SUFFIX).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        FileLock lock = data.lock();
+        try {
+            repair();
+        } finally {
+            lock.release();
+        }
+    }
+
+    /**
+     * Method appending log of session.
+     *
+     * @param time time of synchronization in ms since epoch
+     * @param format layout of the log
+     * @param replayAtr ATR of replay card, empty if not known
+     * @param targetAtr ATR of target card, empty if not known
+     * @param log log
+     * @param logLen length of the used part of the log
+     */
+    public synchronized void append(long time, LogFormat format, byte[] replayAtr, byte[] targetAtr,
+            byte[] log, int logLen) throws IOException {
+        int entryLen = ENTRY_HEAD_LEN + 1 + replayAtr.length + 1 + targetAtr.length + 4 + logLen;
+        // Lock keeps appends of several ControlService processes apart
+        FileLock lock = data.lock();
+        try {
+            repair();
+            long offset = data.size();
+            MappedByteBuffer entry = data.map(FileChannel.MapMode.READ_WRITE, offset, entryLen);
+            entry.putInt(ENTRY_MAGIC).putInt(entryLen).putLong(time);
+            entry.put(format.getId());
+            entry.put((byte) replayAtr.length).put(replayAtr);
+            entry.put((byte) targetAtr.length).put(targetAtr);
+            entry.putInt(logLen).put(log, 0, logLen);
+            entry.force();
+            appendIndex(offset, time, entryLen);
+        } finally {
+            lock.release();
+        }
+    }
+
+    /**
+     * @return number of archived sessions
+     */
+    public synchronized int size() throws IOException {
+        return (int) (index.size() / INDEX_ENTRY_LEN);
+    }
+
+    /**
+     * Method mapping archived session.
+     *
+     * @param i number of session, starting from 0
+     * @return session
+     */
+    public synchronized Session get(int i) throws IOException {
+        ByteBuffer idx = mapIndex();
+        long offset = idx.getLong(i * INDEX_ENTRY_LEN);
+        int entryLen = idx.getInt(i * INDEX_ENTRY_LEN + 16);
+        return new Session(data.map(FileChannel.MapMode.READ_ONLY, offset, entryLen));
+    }
+
+    /**
+     * Method finding the first session synchronized at the time or later.
+     * Sessions are appended in time order, so index is searched by halving.
+     *
+     * @param time time in ms since epoch
+     * @return number of session or size() if there is none
+     */
+    public synchronized int findFirst(long time) throws IOException {
+        ByteBuffer idx = mapIndex();
+        int low = 0;
+        int high = size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (idx.getLong(mid * INDEX_ENTRY_LEN + 8) < time) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        indexMap = null;
+        data.close();
+        index.close();
+    }
+
+    private ByteBuffer mapIndex() throws IOException {
+        long size = index.size() - index.size() % INDEX_ENTRY_LEN;
+        if (indexMap == null || indexMap.capacity() != size) {
+            indexMap = index.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        return indexMap;
+    }
+
+    private void appendIndex(long offset, long time, int entryLen) throws IOException {
+        MappedByteBuffer entry = index.map(FileChannel.MapMode.READ_WRITE, index.size(), INDEX_ENTRY_LEN);
+        entry.putLong(offset).putLong(time).putInt(entryLen);
+        entry.force();
+    }
+
+    /**
+     * Method making index and data consistent after interrupted append.
+     * Data behind the last indexed entry are indexed if complete, cut off otherwise.
+     */
+    private void repair() throws IOException {
+        long entries = index.size() / INDEX_ENTRY_LEN;
+        if (index.size() % INDEX_ENTRY_LEN != 0) {
+            index.truncate(entries * INDEX_ENTRY_LEN);
+        }
+        long end = 0;
+        if (entries > 0) {
+            ByteBuffer last = ByteBuffer.allocate(INDEX_ENTRY_LEN);
+            index.read(last, (entries - 1) * INDEX_ENTRY_LEN);
+            end = last.getLong(0) + last.getInt(16);
+        }
+        ByteBuffer head = ByteBuffer.allocate(ENTRY_HEAD_LEN);
+        while (end < data.size()) {
+            head.clear();
+            data.read(head, end);
+            int entryLen = head.getInt(4);
+            if (head.position() < ENTRY_HEAD_LEN || head.getInt(0) != ENTRY_MAGIC
+                    || entryLen < ENTRY_HEAD_LEN || end + entryLen > data.size()) {
+                data.truncate(end);
+                break;
+            }
+            appendIndex(end, head.getLong(8), entryLen);
+            end += entryLen;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package controlservice;
+
+import cardTools.CardManager;
+import cardTools.Util;
+
+import javax.smartcardio.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Scheduler running the cycle of ControlService for all reader pairs at once.
+ * Cards in all readers are sorted by ATR registry into replay and target cards, which
+ * are paired in the order of readers. Every pair runs on its own thread with
+ * its own log, sessions share only output and latency statistics.
+ */
+public class SessionScheduler {
+
+    private final ControlService parent;
+
+    /**
+     * @param parent instance holding output and latency statistics shared by sessions
+     */
+    public SessionScheduler(ControlService parent) {
+        this.parent = parent;
+    }
+
+    /**
+     * Method running one cycle on every reader pair and waiting for all of them.
+     *
+     * @return number of pairs, which finished successfully
+     */
+    public int run() throws Exception {
+        List<CardManager> replays = new ArrayList<>();
+        List<CardManager> targets = new ArrayList<>();
+        discoverCards(replays, targets);
+
+        int pairs = Math.min(replays.size(), targets.size());
+        if (pairs == 0) {
+            disconnectAll(replays);
+            disconnectAll(targets);
+            throw new Exception("No pair of replay and target card found.");
+        }
+        disconnectAll(replays.subList(pairs, replays.size()));
+        disconnectAll(targets.subList(pairs, targets.size()));
+        System.out.println("Running " + pairs + " session(s).");
+
+        ExecutorService executor = Executors.newFixedThreadPool(pairs);
+        List<Future<?>> sessions = new ArrayList<>();
+        try {
+            for (int i = 0; i < pairs; i++) {
+                final CardManager cardMngrReplay = replays.get(i);
+                final CardManager cardMngrTarget = targets.get(i);
+                sessions.add(executor.submit(() -> {
+                    try {
+                        new ControlService(parent).runCycle(cardMngrReplay, cardMngrTarget);
+                    } finally {
+                        cardMngrReplay.Disconnect(true);
+                        cardMngrTarget.Disconnect(true);
+                    }
+                    return null;
+                }));
+            }
+
+            int finished = 0;
+            for (int i = 0; i < pairs; i++) {
+                try {
+                    sessions.get(i).get();
+                    finished++;
+                } catch (java.util.concurrent.ExecutionException e) {
+                    System.out.println("Session " + replays.get(i).getTerminal().getName() + " -> "
+                            + targets.get(i).getTerminal().getName() + " failed: " + e.getCause());
+                }
+            }
+            return finished;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Method connecting cards in all readers and sorting them by ATR.
+     *
+     * @param replays list filled with replay cards
+     * @param targets list filled with target cards
+     */
+    private void discoverCards(List<CardManager> replays, List<CardManager> targets) throws CardException {
+        for (CardTerminal t : TerminalFactory.getDefault().terminals().list(CardTerminals.State.CARD_PRESENT)) {
+            System.out.println("Card found: " + t.getName());
+            Card card;
+            try {
+                card = t.connect("*");
+            } catch (CardException e) {
+                System.out.println("Connection failed: " + e);
+                continue;
+            }
+            switch (ControlService.getRole(card)) {
+                case REPLAY:
+                    replays.add(ControlService.createCardManager(t, card, false));
+                    break;
+                case TARGET:
+                    targets.add(ControlService.createCardManager(t, card, false));
+                    break;
+                default:
+                    System.out.print("Card has unknown ATR: ");
+                    System.out.println(Util.toHex(card.getATR().getBytes()));
+                    card.disconnect(false);
+                    break;
+            }
+        }
+    }
+
+    private void disconnectAll(List<CardManager> cards) {
+        for (CardManager cardMngr : cards) {
+            try {
+                cardMngr.Disconnect(false);
+            } catch (CardException e) {
+                System.out.println("Disconnect failed: " + e);
+            }
+        }
+    }
+}
@@ -20,19 +20,35 @@ public class LogApplet extends javacard.framework.Applet implements ExtendedLeng
     final static byte INS_SEND_LOG_LEN  = (byte) 0x50;
     final static byte INS_SEND_LOG      = (byte) 0x51;
     final static byte INS_MODIFY_LOG    = (byte) 0x52;
+    final static byte INS_SEND_LOG_USED = (byte) 0x53;
+    final static byte INS_CLEAR_LOG     = (byte) 0x54;
     
     // OTHER APPLET CONSTANTS
     final static short EEPROM_SIZE       = (short) 10000;
+    final static short EEPROM_SIZE_MIN   = (short) 256;
+    final static short SHORT_DATA_MAX_LEN = (short) 255;
+    final static short EXT_DATA_MAX_LEN  = (short) 4096;
+    final static byte LOG_FORMAT_COMPACT = (byte) 1;
     final static byte APDU_T             = (byte) 0;
     final static byte RSPS_T             = (byte) 1;
     final static byte LOG_OFFSET_ITER    = (byte) 0;
-    final static byte LOG_OFFSET_TYPE    = (byte) 1;
-    final static byte LOG_OFFSET_LEN     = (byte) 2;
-    final static byte LOG_OFFSET_DATA    = (byte) 4;
+    final static byte LOG_OFFSET_LEN     = (byte) 1;
+    final static byte LOG_RECORD_MIN_LEN = (byte) 3;
+    final static byte LOG_TYPE_SHIFT     = (byte) 7;
+    final static byte LOG_ITER_MASK      = (byte) 0x7f;
+    final static byte LOG_LEN_LONG       = (byte) 0x80;
+    final static short LOG_LEN_SHORT_MAX = (short) 0x7f;
+    final static byte HEAD_DELTA_CLA     = (byte) 0x08;
+    final static byte HEAD_PREV          = (byte) 0;
+    final static byte HEAD_CURRENT       = (byte) 4;
+    final static byte HEAD_SIZE          = (byte) 8;
     final static byte APDU_HEAD_LEN      = (byte) 4;
     final static byte APDU_HEAD_LEN_EXT  = (byte) 7;
     final static byte APDU_LC_1_EXT      = (byte) 5;
     final static byte APDU_LC_2_EXT      = (byte) 6;
+    final static byte CURSOR_ITER        = (byte) 0;
+    final static byte CURSOR_OFFSET      = (byte) 1;
+    final static byte CURSOR_SIZE        = (byte) 2;
 
     final static short SW_Exception                         = (short) 0xff01;
     final static short SW_ArrayIndexOutOfBoundsException    = (short) 0xff02;
@@ -49,8 +65,14 @@ public class LogApplet extends javacard.framework.Applet implements ExtendedLeng
     
     // PERSISTENT ARRAY IN EEPROM
     private byte m_dataArray[] = null;
+    // PERSISTENT VARIABLE FOR LOG CAPACITY
+    private short m_logSize = EEPROM_SIZE;
     // PERSISTENT VARIABLE FOR ITERATION COUNT
-    private byte iterCount = (byte) 0;
+    private short iterCount = (short) 0;
+    // TRANSIENT CURSOR - last looked up iteration and offset of its record in log
+    private short m_cursor[] = null;
+    // TRANSIENT HEADERS - header of Command APDU preceding the cursor and decoded header at the cursor
+    private byte m_header[] = null;
 
     /**
      * LogApplet default constructor. Only this class's install method should
@@ -77,6 +99,9 @@ public class LogApplet extends javacard.framework.Applet implements ExtendedLeng
             // | 1-n  | [Privilege_Bytes] (normally 1Byte)
             // |  1   | [Application_Proprietary_Length]
             // | 0-m  | [Application_Proprietary_Bytes]
+            //
+            // Proprietary bytes may start with 2 bytes of log capacity,
+            // EEPROM_SIZE is used when they are not present.
             
             // Shift to privilege offset
             dataOffset += (short) (1 + buffer[offset]);
@@ -85,13 +110,23 @@ public class LogApplet extends javacard.framework.Applet implements ExtendedLeng
             // Go to proprietary data
             dataOffset++;
 
+            if (buffer[(short) (dataOffset - 1)] >= (byte) 2) {
+                m_logSize = Util.getShort(buffer, dataOffset);
+                if (m_logSize < EEPROM_SIZE_MIN) {
+                    ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+                }
+            }
+
             // INITIALISATION OF EEPROM
-            m_dataArray = new byte[EEPROM_SIZE];
-            Util.arrayFillNonAtomic(m_dataArray, (short) 0, EEPROM_SIZE, (byte) 0);
+            m_dataArray = new byte[m_logSize];
+            Util.arrayFillNonAtomic(m_dataArray, (short) 0, m_logSize, (byte) 0);
 
             // Update flag
             isOP2 = true;
         } 
+        // INITIALISATION OF TRANSIENT CURSOR
+        m_cursor = JCSystem.makeTransientShortArray(CURSOR_SIZE, JCSystem.CLEAR_ON_DESELECT);
+        m_header = JCSystem.makeTransientByteArray(HEAD_SIZE, JCSystem.CLEAR_ON_DESELECT);
         // Register this instance
         register();
     }
@@ -171,24 +206,173 @@ public class LogApplet extends javacard.framework.Applet implements ExtendedLeng
      */
     void clearSessionData() {
         iterCount = (short) 0;
+        rewindCursor();
+    }
+
+    /**
+     * Method moving the cursor back to the first record in log.
+     */
+    void rewindCursor() {
+        m_cursor[CURSOR_ITER] = (short) 0;
+        m_cursor[CURSOR_OFFSET] = (short) 0;
+        // The first Command APDU is encoded against zero header
+        Util.arrayFillNonAtomic(m_header, HEAD_PREV, APDU_HEAD_LEN, (byte) 0);
+    }
+
+    /**
+     * Method packing iteration number and record type into the first byte of record.
+     *
+     * @param iter iteration number
+     * @param type APDU_T or RSPS_T
+     * @return first byte of record
+     */
+    byte packIterType(short iter, byte type) {
+        return (byte) ((byte) (type << LOG_TYPE_SHIFT) | (byte) (iter & LOG_ITER_MASK));
+    }
+
+    /**
+     * Method reading length of record data. The length is stored in one byte
+     * when it is below 0x80, otherwise in two bytes with the top bit set.
+     *
+     * @param offset offset of record in log
+     * @return length of record data, 0 when there is no record
+     */
+    short getRecordLen(short offset) {
+        short len = (short) (m_dataArray[(short) (offset + LOG_OFFSET_LEN)] & 0xff);
+        if ((len & LOG_LEN_LONG) != 0) {
+            len = (short) ((short) ((short) (len & LOG_LEN_SHORT_MAX) << 8)
+                    | (short) (m_dataArray[(short) (offset + LOG_OFFSET_LEN + 1)] & 0xff));
+        }
+        return len;
+    }
+
+    /**
+     * Method finding data of record.
+     *
+     * @param offset offset of record in log
+     * @return offset of record data in log
+     */
+    short getRecordDataOffset(short offset) {
+        if ((m_dataArray[(short) (offset + LOG_OFFSET_LEN)] & LOG_LEN_LONG) != 0) {
+            return (short) (offset + LOG_OFFSET_LEN + 2);
+        }
+        return (short) (offset + LOG_OFFSET_LEN + 1);
+    }
+
+    /**
+     * Method finding record following the given one.
+     *
+     * @param offset offset of record in log
+     * @return offset of the next record in log
+     */
+    short getNextRecordOffset(short offset) {
+        return (short) (getRecordDataOffset(offset) + getRecordLen(offset));
+    }
+
+    /**
+     * Method writing iteration number, type and length of new record.
+     *
+     * @param offset offset of record in log
+     * @param iter iteration number
+     * @param type APDU_T or RSPS_T
+     * @param len length of record data
+     * @return offset of record data in log
+     */
+    short setRecordHead(short offset, short iter, byte type, short len) {
+        m_dataArray[(short) (offset + LOG_OFFSET_ITER)] = packIterType(iter, type);
+        offset += LOG_OFFSET_LEN;
+        if (len > LOG_LEN_SHORT_MAX) {
+            m_dataArray[offset] = (byte) (LOG_LEN_LONG | (byte) (len >> 8));
+            offset++;
+        }
+        m_dataArray[offset] = (byte) len;
+        return (short) (offset + 1);
+    }
+
+    /**
+     * Method reconstructing header of logged Command APDU. Data of command record
+     * start with mask of header bytes (CLA, INS, P1, P2) differing from the previous
+     * Command APDU, followed by these bytes and the rest of Command APDU.
+     *
+     * @param offset offset of command record in log
+     * @param headOffset HEAD_PREV to move the previous header on, HEAD_CURRENT to keep it
+     * @return offset of the rest of logged Command APDU behind the header
+     */
+    short decodeHeader(short offset, byte headOffset) {
+        short dataOffset = getRecordDataOffset(offset);
+        byte mask = m_dataArray[dataOffset];
+        dataOffset++;
+        if (headOffset != HEAD_PREV) {
+            Util.arrayCopyNonAtomic(m_header, HEAD_PREV, m_header, headOffset, APDU_HEAD_LEN);
+        }
+        for (byte i = (byte) 0; i < APDU_HEAD_LEN; i++) {
+            if ((mask & (byte) (HEAD_DELTA_CLA >> i)) != 0) {
+                m_header[(short) (headOffset + i)] = m_dataArray[dataOffset];
+                dataOffset++;
+            }
+        }
+        return dataOffset;
+    }
+
+    /**
+     * Method writing record head of new Command APDU together with its header
+     * encoded against the previous Command APDU.
+     *
+     * @param offset offset of record in log
+     * @param iter iteration number
+     * @param apduBuffer buffer with header of received Command APDU
+     * @param apduLen length of logged Command APDU including header
+     * @return offset in log, where the rest of Command APDU behind header belongs
+     */
+    short setCommandHead(short offset, short iter, byte[] apduBuffer, short apduLen) {
+        byte mask = (byte) 0;
+        short dataLen = (short) (apduLen - APDU_HEAD_LEN + 1);
+        for (byte i = (byte) 0; i < APDU_HEAD_LEN; i++) {
+            if (apduBuffer[i] != m_header[(short) (HEAD_PREV + i)]) {
+                mask |= (byte) (HEAD_DELTA_CLA >> i);
+                dataLen++;
+            }
+        }
+        offset = setRecordHead(offset, iter, APDU_T, dataLen);
+        m_dataArray[offset] = mask;
+        offset++;
+        for (byte i = (byte) 0; i < APDU_HEAD_LEN; i++) {
+            if ((mask & (byte) (HEAD_DELTA_CLA >> i)) != 0) {
+                m_dataArray[offset] = apduBuffer[i];
+                offset++;
+            }
+        }
+        return offset;
     }
 
     /**
      * Method finding record in log according to iteration number.
+     * The walk starts at the cursor, so sequential lookups during replay
+     * skip only the records of the previous iteration.
      *
      * @param iter iteration number
      * @return offset in log, where is record of the APDU specified by iteration
      */
-    short getLogOffset(byte iter) {
-        short offset = (short) 0;
-        for (short i = (short) 0; i < (short) ((short) 2 * iter); i++) {
-            if (m_dataArray[(short) (offset + LOG_OFFSET_ITER)] != (short) (i / (short) 2)
-                || Util.getShort(m_dataArray, (short) (offset + LOG_OFFSET_LEN)) == 0) {
+    short getLogOffset(short iter) {
+        if (iter < m_cursor[CURSOR_ITER]) {
+            // Cursor is beyond requested iteration, walk from the beginning
+            rewindCursor();
+        }
+        short offset = m_cursor[CURSOR_OFFSET];
+        for (short i = (short) ((short) 2 * m_cursor[CURSOR_ITER]); i < (short) ((short) 2 * iter); i++) {
+            byte type = (short) (i & 1) == 0 ? APDU_T : RSPS_T;
+            if (m_dataArray[(short) (offset + LOG_OFFSET_ITER)] != packIterType((short) (i / (short) 2), type)
+                || getRecordLen(offset) == 0) {
                     // Offset is not actual iteration in for loop or iteration is correct, but no data
                     ISOException.throwIt(SW_Exception); // Inconsistence in log
             }
-            offset += LOG_OFFSET_DATA + Util.getShort(m_dataArray, (short) (offset + LOG_OFFSET_LEN));
+            if (type == APDU_T) {
+                decodeHeader(offset, HEAD_PREV);
+            }
+            offset = getNextRecordOffset(offset);
         }
+        m_cursor[CURSOR_ITER] = iter;
+        m_cursor[CURSOR_OFFSET] = offset;
         return offset;
     }
     
@@ -201,18 +385,19 @@ public class LogApplet extends javacard.framework.Applet implements ExtendedLeng
     byte checkLog(APDU apdu) {
         byte[] apduBuffer = apdu.getBuffer();
         short offset = getLogOffset(iterCount);
-        short loggedApduLen = Util.getShort(m_dataArray, (short) (offset + LOG_OFFSET_LEN));
         
-        if (0 == loggedApduLen) {
+        if (0 == getRecordLen(offset)) {
             return (byte) 1;
         }
-        if (0 != Util.arrayCompare(m_dataArray, (short) (offset + LOG_OFFSET_DATA),
-                        apduBuffer, (short) 0, loggedApduLen)) {
+        short dataOffset = decodeHeader(offset, HEAD_CURRENT);
+        short nextOffset = getNextRecordOffset(offset);
+        if (0 != Util.arrayCompare(m_header, HEAD_CURRENT, apduBuffer, (short) 0, APDU_HEAD_LEN)
+            || 0 != Util.arrayCompare(m_dataArray, dataOffset,
+                        apduBuffer, APDU_HEAD_LEN, (short) (nextOffset - dataOffset))) {
             // Received APDU does not match logged APDU 
             ISOException.throwIt(SW_Exception);
         }
-        if (0 == Util.getShort(m_dataArray,
-                        (short) (offset + LOG_OFFSET_DATA + loggedApduLen + LOG_OFFSET_LEN))) {
+        if (0 == getRecordLen(nextOffset)) {
             // No logged Response APDU
             ISOException.throwIt(SW_Exception);
         }
@@ -228,23 +413,24 @@ public class LogApplet extends javacard.framework.Applet implements ExtendedLeng
         short offset = getLogOffset(iterCount);
         iterCount++;
         // Get offset of respective place in log of the Response APDU
-        offset += LOG_OFFSET_DATA + Util.getShort(m_dataArray, (short) (offset + LOG_OFFSET_LEN));
+        offset = getNextRecordOffset(offset);
+        short dataOffset = getRecordDataOffset(offset);
         // Response APDU length is calculated with two bytes SW1 and SW2
-        short responseLen = Util.getShort(m_dataArray, (short) (offset + LOG_OFFSET_LEN));
+        short responseLen = getRecordLen(offset);
         if (responseLen == 2) {
             // No data, only SW1 and SW2
-            if (Util.getShort(m_dataArray, (short) (offset + LOG_OFFSET_DATA)) == (short) 0x9000) {
+            if (Util.getShort(m_dataArray, dataOffset) == (short) 0x9000) {
                 // Send no data and no error - 0x9000
                 apdu.setOutgoingAndSend(ISO7816.OFFSET_CDATA, (byte) 0);
             } else {
                 // Throw exception with error code == send SW of that error
-                ISOException.throwIt(Util.getShort(m_dataArray, (short) (offset + LOG_OFFSET_DATA)));
+                ISOException.throwIt(Util.getShort(m_dataArray, dataOffset));
             }
             return;
         }
         byte[] apduBuffer = apdu.getBuffer();
         if (((short) (responseLen - 2)) <= (byte) 0xff) {
-            Util.arrayCopyNonAtomic(m_dataArray, (short) (offset + LOG_OFFSET_DATA),
+            Util.arrayCopyNonAtomic(m_dataArray, dataOffset,
                     apduBuffer, ISO7816.OFFSET_CDATA, (short) (responseLen - 2));
             // Assuming SW is 0x9000 when responding with data
             apdu.setOutgoingAndSend(ISO7816.OFFSET_CDATA, (short) (responseLen - 2));
@@ -252,7 +438,7 @@ public class LogApplet extends javacard.framework.Applet implements ExtendedLeng
             // Extended Response APDU
             apdu.setOutgoing();
             apdu.setOutgoingLength((short) (responseLen - 2));
-            apdu.sendBytesLong(m_dataArray, (short) (offset + LOG_OFFSET_DATA),
+            apdu.sendBytesLong(m_dataArray, dataOffset,
                     (short) (responseLen - (byte) 2));
         }
     }  
@@ -265,42 +451,21 @@ public class LogApplet extends javacard.framework.Applet implements ExtendedLeng
      * @param apdu received Command APDU
      * @param iter iteration number
      */
-    void logNewAPDU(APDU apdu, byte iter) {
+    void logNewAPDU(APDU apdu, short iter) {
         byte[] apduBuffer = apdu.getBuffer();
         short offset = getLogOffset(iter);
-        
-        m_dataArray[(short) (offset + LOG_OFFSET_ITER)] = iter;
-        m_dataArray[(short) (offset + LOG_OFFSET_TYPE)] = APDU_T;
+        short apduLen;
+        boolean extended = false;
         
         if(apduBuffer[ISO7816.OFFSET_LC] == 0) {
             if (apduBuffer[APDU_LC_1_EXT] != 0 || apduBuffer[APDU_LC_2_EXT] != 0) {
                 // Extended APDU
-                short dataLen = Util.getShort(apduBuffer, APDU_LC_1_EXT);
-                Util.setShort(m_dataArray, (short) (offset + LOG_OFFSET_LEN),
-                        (short) (dataLen + APDU_HEAD_LEN_EXT));
-                // Log the head of APDU
-                Util.arrayCopyNonAtomic(apduBuffer, (short) 0,
-                        m_dataArray, (short) (offset + LOG_OFFSET_DATA), APDU_HEAD_LEN_EXT);
-                
-                dataLen = apdu.setIncomingAndReceive();
-                short pointer = (short) 0;
-                short offsetData = APDU_HEAD_LEN_EXT;
-                while (dataLen > (short) 0) 
-                {
-                    Util.arrayCopyNonAtomic(apduBuffer, offsetData,
-                            m_dataArray, (short) (offset + LOG_OFFSET_DATA + APDU_HEAD_LEN_EXT + pointer),
-                            dataLen);
-                    pointer += dataLen;
-                    // Gets as many data bytes as will fit without APDU buffer overflow
-                    dataLen = apdu.receiveBytes(offsetData);
-                }
+                apduLen = (short) (Util.getShort(apduBuffer, APDU_LC_1_EXT) + APDU_HEAD_LEN_EXT);
+                extended = true;
             } else {
                 // Classic Case 2 APDU
                 // Classic APDU header and Le zero byte is 5 bytes
-                Util.setShort(m_dataArray, (short) (offset + LOG_OFFSET_LEN),
-                        (short) (APDU_HEAD_LEN + 1));
-                Util.arrayCopyNonAtomic(apduBuffer, (short) 0, m_dataArray,
-                        (short) (offset + LOG_OFFSET_DATA), (short) (APDU_HEAD_LEN + 1));
+                apduLen = (short) (APDU_HEAD_LEN + 1);
             }
         } else {
             boolean allZeros = true;
@@ -312,35 +477,78 @@ public class LogApplet extends javacard.framework.Applet implements ExtendedLeng
             if (allZeros) {
                 // apduBuffer is header, non-zero byte and zeros
                 // Logging as Classic Case 2 APDU - fifth byte is Le
-                Util.setShort(m_dataArray, (short) (offset + LOG_OFFSET_LEN),
-                        (short) (APDU_HEAD_LEN + 1));
-                Util.arrayCopyNonAtomic(apduBuffer, (short) 0, m_dataArray,
-                        (short) (offset + LOG_OFFSET_DATA), (short) (APDU_HEAD_LEN + 1));
+                apduLen = (short) (APDU_HEAD_LEN + 1);
+            } else if (apduBuffer[ISO7816.OFFSET_LC] == (byte) 0xff) {
+                // Length of data is 255 bytes, logging only header, Lc and data
+                apduLen = (short) 260; 
             } else {
-                short apduLen;
-                if (apduBuffer[ISO7816.OFFSET_LC] == (byte) 0xff) {
-                    // Length of data is 255 bytes, logging only header, Lc and data
-                    apduLen = (short) 260; 
-                } else {
-                    // Length of data is smaller than 255 bytes
-                    // Logging header, Lc , data and Le as zero byte
-                    apduLen = (short) (apduBuffer[ISO7816.OFFSET_LC] + APDU_HEAD_LEN + 2);
-                }
-                Util.setShort(m_dataArray, (short) (offset + LOG_OFFSET_LEN), apduLen);
-                Util.arrayCopyNonAtomic(apduBuffer, (short) 0,
-                            m_dataArray, (short) (offset + LOG_OFFSET_DATA), apduLen); 
+                // Length of data is smaller than 255 bytes
+                // Logging header, Lc , data and Le as zero byte
+                apduLen = (short) ((short) (apduBuffer[ISO7816.OFFSET_LC] & 0xff) + APDU_HEAD_LEN + 2);
             }
         }
+        
+        offset = setCommandHead(offset, iter, apduBuffer, apduLen);
+        if (!extended) {
+            Util.arrayCopyNonAtomic(apduBuffer, APDU_HEAD_LEN,
+                    m_dataArray, offset, (short) (apduLen - APDU_HEAD_LEN));
+            return;
+        }
+        // Log the Lc of Extended APDU
+        Util.arrayCopyNonAtomic(apduBuffer, APDU_HEAD_LEN,
+                m_dataArray, offset, (short) (APDU_HEAD_LEN_EXT - APDU_HEAD_LEN));
+        offset += (short) (APDU_HEAD_LEN_EXT - APDU_HEAD_LEN);
+        
+        short dataLen = apdu.setIncomingAndReceive();
+        while (dataLen > (short) 0) 
+        {
+            Util.arrayCopyNonAtomic(apduBuffer, APDU_HEAD_LEN_EXT,
+                    m_dataArray, offset, dataLen);
+            offset += dataLen;
+            // Gets as many data bytes as will fit without APDU buffer overflow
+            dataLen = apdu.receiveBytes(APDU_HEAD_LEN_EXT);
+        }
     }
     
     /**
-     * Method sending the log length.
+     * Method sending the log length followed by maximal data length
+     * of one Extended APDU transferring the log and by the log format.
      *
      * @param apdu received Command APDU
      */
     void serviceSendLogLen(APDU apdu) {
         byte[] apduBuffer = apdu.getBuffer();
-        Util.setShort(apduBuffer, ISO7816.OFFSET_CDATA, EEPROM_SIZE);
+        Util.setShort(apduBuffer, ISO7816.OFFSET_CDATA, m_logSize);
+        Util.setShort(apduBuffer, (short) (ISO7816.OFFSET_CDATA + 2), EXT_DATA_MAX_LEN);
+        apduBuffer[(short) (ISO7816.OFFSET_CDATA + 4)] = LOG_FORMAT_COMPACT;
+        apdu.setOutgoingAndSend(ISO7816.OFFSET_CDATA, (short) 5);
+    }
+    
+    /**
+     * Method finding the end of the last record in log.
+     *
+     * @return number of bytes occupied by records in log
+     */
+    short getLogUsedLen() {
+        short offset = (short) 0;
+        while ((short) (offset + LOG_RECORD_MIN_LEN) <= m_logSize && getRecordLen(offset) != 0) {
+            offset = getNextRecordOffset(offset);
+        }
+        if (offset > m_logSize) {
+            // Last record is truncated by the end of log
+            offset = m_logSize;
+        }
+        return offset;
+    }
+
+    /**
+     * Method sending the used log length, so only records have to be read out.
+     *
+     * @param apdu received Command APDU
+     */
+    void serviceSendLogUsed(APDU apdu) {
+        byte[] apduBuffer = apdu.getBuffer();
+        Util.setShort(apduBuffer, ISO7816.OFFSET_CDATA, getLogUsedLen());
         apdu.setOutgoingAndSend(ISO7816.OFFSET_CDATA, (short) 2);
     }
     
@@ -351,14 +559,21 @@ public class LogApplet extends javacard.framework.Applet implements ExtendedLeng
      * @param logOffset offset of the log
      */
     void serviceSendLog(APDU apdu, short logOffset) {
-        byte[] apduBuffer = apdu.getBuffer();
-        short dataLen = (short) (EEPROM_SIZE - logOffset) < (short) 255
-                ? (short) (EEPROM_SIZE - logOffset)
-                : (short) 255;
-
-        Util.arrayCopyNonAtomic(m_dataArray, logOffset,
-                apduBuffer, (short) 0, dataLen);
-        apdu.setOutgoingAndSend((short) 0, dataLen);
+        short dataLen = (short) (m_logSize - logOffset);
+        short le = apdu.setOutgoing();
+        if (le == (short) 0) {
+            // Le not present, send what fits into short Response APDU
+            le = SHORT_DATA_MAX_LEN;
+        }
+        if (le > EXT_DATA_MAX_LEN) {
+            le = EXT_DATA_MAX_LEN;
+        }
+        if (dataLen > le) {
+            dataLen = le;
+        }
+        apdu.setOutgoingLength(dataLen);
+        // Data are sent in chunks directly from log without copying into APDU buffer
+        apdu.sendBytesLong(m_dataArray, logOffset, dataLen);
     }
     
     /**
@@ -370,8 +585,31 @@ public class LogApplet extends javacard.framework.Applet implements ExtendedLeng
     void serviceModifyLog(APDU apdu, short logOffset) {
         byte[] apduBuffer = apdu.getBuffer();
         short dataLen = apdu.setIncomingAndReceive();
-        Util.arrayCopyNonAtomic(apduBuffer, ISO7816.OFFSET_CDATA,
-                m_dataArray, logOffset, dataLen);
+        short dataOffset = apdu.getOffsetCdata();
+        if (apdu.getIncomingLength() > (short) (m_logSize - logOffset)) {
+            ISOException.throwIt(SW_ArrayIndexOutOfBoundsException);
+        }
+        while (dataLen > (short) 0) {
+            Util.arrayCopyNonAtomic(apduBuffer, dataOffset,
+                    m_dataArray, logOffset, dataLen);
+            logOffset += dataLen;
+            // Extended APDU data do not have to fit into APDU buffer at once
+            dataLen = apdu.receiveBytes(dataOffset);
+        }
+        // Records may have changed under the cursor
+        rewindCursor();
+    }
+    
+    /**
+     * Method erasing all records in the log.
+     * INS_MODIFY_LOG may have written anywhere in the log, also behind
+     * the used part, so the whole log is cleared.
+     *
+     * @param apdu received Command APDU
+     */
+    void serviceClearLog(APDU apdu) {
+        Util.arrayFillNonAtomic(m_dataArray, (short) 0, m_logSize, (byte) 0);
+        clearSessionData();
     }
     
     /**
@@ -382,7 +620,7 @@ public class LogApplet extends javacard.framework.Applet implements ExtendedLeng
     void parseServiceAPDU(APDU apdu) {
         byte[] apduBuffer = apdu.getBuffer();        
         short logOffset = Util.getShort(apduBuffer, ISO7816.OFFSET_P1);
-        if (logOffset >= EEPROM_SIZE) {
+        if (logOffset < (short) 0 || logOffset >= m_logSize) {
             ISOException.throwIt(SW_ArrayIndexOutOfBoundsException);
         }
         
@@ -396,6 +634,12 @@ public class LogApplet extends javacard.framework.Applet implements ExtendedLeng
             case INS_MODIFY_LOG:
                 serviceModifyLog(apdu, logOffset);
                 break;
+            case INS_SEND_LOG_USED:
+                serviceSendLogUsed(apdu);
+                break;
+            case INS_CLEAR_LOG:
+                serviceClearLog(apdu);
+                break;
             default:
                 // The INS code is not supported by the dispatcher
                 ISOException.throwIt(ISO7816.SW_INS_NOT_SUPPORTED);
@@ -409,12 +653,12 @@ public class LogApplet extends javacard.framework.Applet implements ExtendedLeng
      * @param apdu received Command APDU
      */
     void parseUnknownAPDU(APDU apdu) {
-        if (Util.getShort(m_dataArray, LOG_OFFSET_LEN) == (byte) 0) {
+        if (getRecordLen((short) 0) == (short) 0) {
             // No data in log
-            if (iterCount != (byte) 0) {
+            if (iterCount != (short) 0) {
                 ISOException.throwIt(SW_Exception);
             }
-            logNewAPDU(apdu, (byte) 0);
+            logNewAPDU(apdu, (short) 0);
             ISOException.throwIt(SW_Exception); // Nothing to respond
         } else {
             if (checkLog(apdu) == (byte) 0) {